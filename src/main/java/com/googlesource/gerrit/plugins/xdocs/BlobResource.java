@@ -0,0 +1,161 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.google.gerrit.httpd.resources.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jgit.lib.ObjectLoader;
+
+/**
+ * Resource that streams a blob from the repository to the response.
+ *
+ * <p>The content is never held in memory as a whole, so that serving a blob needs constant memory
+ * regardless of its size. Single byte ranges are supported, {@code If-Range} is validated against
+ * the ETag that the servlet computes for the request, the same ETag that is used for documents.
+ *
+ * <p>The resource must only be sent while the repository from which the blob was opened is open,
+ * it is not meant to be cached.
+ */
+class BlobResource extends Resource {
+  private static final long serialVersionUID = 1L;
+
+  /** Returned by {@link #parseRange(String, long)} if the range cannot be satisfied. */
+  static final long[] UNSATISFIABLE = new long[0];
+
+  private final transient ObjectLoader loader;
+  private final String etag;
+  private final String contentType;
+  private final long lastModified;
+
+  BlobResource(ObjectLoader loader, String etag, String contentType, long lastModified) {
+    this.loader = loader;
+    this.etag = etag;
+    this.contentType = contentType;
+    this.lastModified = lastModified;
+  }
+
+  @Override
+  public int weigh() {
+    return 0;
+  }
+
+  @Override
+  public boolean isUnchanged(long latestModifiedDate) {
+    return lastModified == latestModifiedDate;
+  }
+
+  @Override
+  public void send(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    res.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+    if (0 < lastModified) {
+      long ifModifiedSince = req.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+      if (ifModifiedSince > 0 && ifModifiedSince == lastModified) {
+        res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      res.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+    }
+    res.setContentType(contentType);
+    res.setCharacterEncoding(UTF_8.name());
+
+    long size = loader.getSize();
+    long[] range = null;
+    String ifRange = req.getHeader(HttpHeaders.IF_RANGE);
+    if (ifRange == null || ifRange.equals(etag)) {
+      range = parseRange(req.getHeader(HttpHeaders.RANGE), size);
+    }
+    if (range == UNSATISFIABLE) {
+      res.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+      res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return;
+    }
+
+    OutputStream out = res.getOutputStream();
+    if (range == null) {
+      res.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(size));
+      loader.copyTo(out);
+      return;
+    }
+
+    long length = range[1] - range[0] + 1;
+    res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    res.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + size);
+    res.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(length));
+    try (InputStream in = loader.openStream()) {
+      ByteStreams.skipFully(in, range[0]);
+      ByteStreams.copy(ByteStreams.limit(in, length), out);
+    }
+  }
+
+  /**
+   * Parses the value of a Range header.
+   *
+   * <p>Only a single byte range is supported, requests for multiple ranges are served with the
+   * full content.
+   *
+   * @param header the value of the Range header, may be <code>null</code>
+   * @param size the size of the content
+   * @return the first and the last byte position of the range, <code>null</code> if the full
+   *     content should be served, {@link #UNSATISFIABLE} if the range cannot be satisfied
+   */
+  static long[] parseRange(String header, long size) {
+    if (header == null || !header.startsWith("bytes=")) {
+      return null;
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    if (spec.contains(",")) {
+      return null;
+    }
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      long start;
+      long end;
+      if (first.isEmpty()) {
+        // suffix range, the last n bytes
+        long n = Long.parseLong(last);
+        if (n <= 0) {
+          return UNSATISFIABLE;
+        }
+        start = Math.max(0, size - n);
+        end = size - 1;
+      } else {
+        start = Long.parseLong(first);
+        end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+        if (end < start) {
+          return start >= size ? UNSATISFIABLE : null;
+        }
+      }
+      if (start >= size) {
+        return UNSATISFIABLE;
+      }
+      return new long[] {start, end};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
@@ -15,7 +15,9 @@
 package com.googlesource.gerrit.plugins.xdocs;
 
 import com.google.common.base.MoreObjects;
+import com.google.gerrit.server.config.ConfigUtil;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.lib.Config;
 
 public class ConfigSection {
@@ -61,6 +63,10 @@ public class ConfigSection {
     return cfg.getLong(section, subsection, name, defaultValue);
   }
 
+  public long getTimeUnit(String name, long defaultValue, TimeUnit wantUnit) {
+    return ConfigUtil.getTimeUnit(cfg, section, subsection, name, defaultValue, wantUnit);
+  }
+
   public boolean getBoolean(String name, boolean defaultValue) {
     return cfg.getBoolean(section, subsection, name, defaultValue);
   }
@@ -0,0 +1,131 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import org.xml.sax.ContentHandler;
+
+/**
+ * Compiled HTML header stylesheets of the diff modes.
+ *
+ * <p>The stylesheets are compiled once when the plugin is started. The compiled {@link Templates}
+ * are thread-safe and are shared by all diff previews, only the lightweight transformer handlers
+ * are created per diff.
+ */
+@Singleton
+public class DiffStylesheets {
+  private static final String XSL_PREFIX = "com/googlesource/gerrit/plugins/xdocs/diff/htmlheader-";
+
+  private final SAXTransformerFactory tf;
+  private final Map<DiffMode, Templates> templates;
+  private final Timer1<DiffMode> transformLatency;
+
+  @Inject
+  DiffStylesheets(MetricMaker metrics) throws TransformerConfigurationException {
+    Field<DiffMode> diffModeField = Field.ofEnum(DiffMode.class, "diff_mode");
+    Timer1<DiffMode> compileLatency =
+        metrics.newTimer(
+            "diff/xsl_compile_latency",
+            new Description("Time spent compiling the HTML header stylesheet of a diff mode")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            diffModeField);
+    this.transformLatency =
+        metrics.newTimer(
+            "diff/xsl_transform_latency",
+            new Description("Time spent creating and transforming an HTML diff")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            diffModeField);
+
+    this.tf = (SAXTransformerFactory) TransformerFactory.newInstance();
+    this.templates = new EnumMap<>(DiffMode.class);
+    for (DiffMode diffMode : DiffMode.values()) {
+      if (diffMode == DiffMode.NO_DIFF) {
+        continue;
+      }
+      try (Timer1.Context ctx = compileLatency.start(diffMode)) {
+        templates.put(diffMode, tf.newTemplates(getSource(diffMode)));
+      }
+    }
+  }
+
+  private static StreamSource getSource(DiffMode diffMode)
+      throws TransformerConfigurationException {
+    String xsl = XSL_PREFIX + diffMode.name().toLowerCase(Locale.US).replace('_', '-') + ".xsl";
+    URL url = DiffStylesheets.class.getClassLoader().getResource(xsl);
+    if (url == null) {
+      throw new TransformerConfigurationException(
+          String.format("Stylesheet '%s' not found", xsl));
+    }
+    return new StreamSource(url.toExternalForm());
+  }
+
+  /**
+   * Creates a content handler that applies the HTML header stylesheet of the given diff mode and
+   * writes the result to the given output stream.
+   *
+   * @param diffMode the diff mode
+   * @param out the stream to which the transformed HTML is written
+   * @return the content handler, <code>null</code> if there is no stylesheet for the diff mode
+   * @throws TransformerConfigurationException thrown if the handler cannot be created
+   */
+  public ContentHandler newHandler(DiffMode diffMode, OutputStream out)
+      throws TransformerConfigurationException {
+    Templates t = templates.get(diffMode);
+    if (t == null) {
+      return null;
+    }
+    TransformerHandler result;
+    TransformerHandler handler;
+    // TransformerFactory is not thread-safe, creating handlers is cheap compared to the diff
+    synchronized (tf) {
+      result = tf.newTransformerHandler();
+      handler = tf.newTransformerHandler(t);
+    }
+    result.setResult(new StreamResult(out));
+    handler.setResult(new SAXResult(result));
+    return handler;
+  }
+
+  /**
+   * Starts timing the transformation of a diff.
+   *
+   * @param diffMode the diff mode
+   * @return the timer context, closing it records the elapsed time
+   */
+  public Timer1.Context startTransform(DiffMode diffMode) {
+    return transformLatency.start(diffMode);
+  }
+}
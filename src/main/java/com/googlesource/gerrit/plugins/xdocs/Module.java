@@ -20,6 +20,7 @@ import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.client.GerritTopMenu;
 import com.google.gerrit.extensions.client.MenuItem;
 import com.google.gerrit.extensions.config.FactoryModule;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
 import com.google.gerrit.extensions.registration.DynamicMap;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.webui.BranchWebLink;
@@ -27,8 +28,13 @@ import com.google.gerrit.extensions.webui.DiffWebLink;
 import com.google.gerrit.extensions.webui.FileWebLink;
 import com.google.gerrit.extensions.webui.ProjectWebLink;
 import com.google.gerrit.extensions.webui.TopMenu;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.UploadPackInitializer;
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.xdocs.formatter.AsciidoctorFormatter;
+import com.googlesource.gerrit.plugins.xdocs.formatter.AsciidoctorPool;
+import com.googlesource.gerrit.plugins.xdocs.formatter.DefaultCssRegistry;
 import com.googlesource.gerrit.plugins.xdocs.formatter.DocxFormatter;
 import com.googlesource.gerrit.plugins.xdocs.formatter.Formatter;
 import com.googlesource.gerrit.plugins.xdocs.formatter.ImageFormatter;
@@ -36,19 +42,37 @@ import com.googlesource.gerrit.plugins.xdocs.formatter.MarkdownFormatter;
 import com.googlesource.gerrit.plugins.xdocs.formatter.PlainTextFormatter;
 import com.googlesource.gerrit.plugins.xdocs.formatter.ZipFormatter;
 import java.util.List;
+import org.eclipse.jgit.lib.Config;
 
 public class Module extends FactoryModule {
   private final String pluginName;
+  private final boolean replica;
 
   @Inject
-  Module(@PluginName String pluginName) {
+  Module(@PluginName String pluginName, @GerritServerConfig Config serverCfg) {
     this.pluginName = pluginName;
+    this.replica = serverCfg.getBoolean("container", "slave", false);
   }
 
   @Override
   protected void configure() {
     install(new XDocLoader.Module());
+    install(new XDocAccessCache.Module(replica));
+    install(new XDocCache.Module());
+    install(new XDocFileCache.Module());
+    install(new XDocHtmlCache.Module());
     factory(XDocProjectConfig.Factory.class);
+    bind(DefaultCssRegistry.class).asEagerSingleton();
+    bind(DiffStylesheets.class).asEagerSingleton();
+    install(
+        new LifecycleModule() {
+          @Override
+          protected void configure() {
+            listener().to(AsciidoctorPool.class);
+            listener().to(XDocPreRenderer.class);
+            listener().to(XDocRenderExecutor.class);
+          }
+        });
 
     DynamicMap.mapOf(binder(), Formatter.class);
     bind(Formatter.class)
@@ -72,6 +96,10 @@ public class Module extends FactoryModule {
     DynamicSet.bind(binder(), DiffWebLink.class).to(SideBySideDiffPreviewWebLink.class);
     DynamicSet.bind(binder(), DiffWebLink.class).to(UnifiedDiffPreviewWebLink.class);
 
+    DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(XDocPreRenderer.class);
+    DynamicSet.bind(binder(), GitReferenceUpdatedListener.class).to(XDocAccessCache.class);
+    DynamicSet.bind(binder(), UploadPackInitializer.class).to(XDocUploadPackInitializer.class);
+
     DynamicSet.bind(binder(), TopMenu.class)
         .toInstance(
             new TopMenu() {
@@ -0,0 +1,176 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_MAX_CONCURRENT;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_MAX_QUEUED;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_TIMEOUT;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of concurrent renderings per formatter.
+ *
+ * <p>Formatters differ a lot in their cost, e.g. converting a DOCX file or an Asciidoctor document
+ * is far more expensive than formatting plain text. Each formatter has its own limit of concurrent
+ * renderings and of renderings that may wait for a free slot, so that a burst of requests for
+ * documents of one expensive formatter cannot starve the renderings of all other formatters.
+ *
+ * <p>Background renderings, e.g. by the {@link XDocPreRenderer}, never wait for a slot and never
+ * take a slot for which an interactive rendering is waiting, so that they cannot delay requests.
+ *
+ * <p>The limits of a formatter are read when the formatter renders for the first time, changing
+ * them requires a reload of the plugin.
+ */
+@Singleton
+public class RenderAdmission {
+  /** Permit to render a document, closing it frees the slot for the next rendering. */
+  public interface Permit extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /** Scope in which renderings are background renderings, closing it ends the scope. */
+  public interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private static final Permit UNLIMITED = () -> {};
+  private static final ThreadLocal<Boolean> BACKGROUND = new ThreadLocal<>();
+
+  private final String pluginName;
+  private final PluginConfigFactory pluginCfgFactory;
+  private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<>();
+  private final Counter1<String> rejected;
+
+  @Inject
+  RenderAdmission(
+      @PluginName String pluginName, PluginConfigFactory pluginCfgFactory, MetricMaker metrics) {
+    this.pluginName = pluginName;
+    this.pluginCfgFactory = pluginCfgFactory;
+    this.rejected =
+        metrics.newCounter(
+            "render/rejected",
+            new Description("Renderings that were rejected because the formatter was saturated")
+                .setRate()
+                .setUnit("renderings"),
+            Field.ofString("formatter"));
+  }
+
+  /**
+   * Marks all renderings of the current thread as background renderings until the returned scope
+   * is closed.
+   *
+   * @return the scope, must be closed when the background renderings are done
+   */
+  public Scope background() {
+    BACKGROUND.set(Boolean.TRUE);
+    return BACKGROUND::remove;
+  }
+
+  /**
+   * Acquires a permit to render a document with the given formatter.
+   *
+   * <p>If all slots of the formatter are in use, the caller waits for a free slot unless too many
+   * callers are waiting already. Background renderings are rejected right away if no slot is free
+   * or if other renderings wait for a slot.
+   *
+   * @param formatterName the name of the formatter
+   * @return the permit, must be closed when the rendering is done
+   * @throws RenderRejectedException thrown if the formatter is saturated
+   * @throws InterruptedIOException thrown if the thread was interrupted while waiting
+   */
+  public Permit acquire(String formatterName)
+      throws RenderRejectedException, InterruptedIOException {
+    Limit limit = limits.computeIfAbsent(formatterName, this::createLimit);
+    if (limit.permits == null) {
+      return UNLIMITED;
+    }
+    if (BACKGROUND.get() != null) {
+      if (limit.permits.hasQueuedThreads() || !limit.permits.tryAcquire()) {
+        // not counted as rejection, the documents are rendered when they are requested
+        throw new RenderRejectedException(formatterName);
+      }
+      return limit::release;
+    }
+    if (limit.permits.tryAcquire()) {
+      return limit::release;
+    }
+
+    if (limit.queued.incrementAndGet() > limit.maxQueued) {
+      limit.queued.decrementAndGet();
+      throw reject(formatterName);
+    }
+    try {
+      if (!limit.permits.tryAcquire(limit.timeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw reject(formatterName);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for a render slot");
+    } finally {
+      limit.queued.decrementAndGet();
+    }
+    return limit::release;
+  }
+
+  private RenderRejectedException reject(String formatterName) {
+    rejected.increment(formatterName);
+    return new RenderRejectedException(formatterName);
+  }
+
+  private Limit createLimit(String formatterName) {
+    XDocGlobalConfig cfg = new XDocGlobalConfig(pluginCfgFactory.getGlobalPluginConfig(pluginName));
+    ConfigSection formatterCfg = cfg.getFormatterConfig(formatterName);
+    int maxConcurrent =
+        formatterCfg.getInt(KEY_MAX_CONCURRENT, Runtime.getRuntime().availableProcessors());
+    int maxQueued = formatterCfg.getInt(KEY_MAX_QUEUED, 2 * maxConcurrent);
+    long timeoutMillis =
+        cfg.getRenderConfig()
+            .getTimeUnit(KEY_TIMEOUT, TimeUnit.SECONDS.toMillis(30), TimeUnit.MILLISECONDS);
+    return new Limit(maxConcurrent, Math.max(0, maxQueued), timeoutMillis);
+  }
+
+  private static class Limit {
+    final Semaphore permits;
+    final int maxQueued;
+    final long timeoutMillis;
+    final AtomicInteger queued = new AtomicInteger();
+
+    Limit(int maxConcurrent, int maxQueued, long timeoutMillis) {
+      this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+      this.maxQueued = maxQueued;
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    void release() {
+      permits.release();
+    }
+  }
+}
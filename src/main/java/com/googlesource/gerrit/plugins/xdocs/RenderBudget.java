@@ -0,0 +1,145 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU time and output size budget of a single rendering.
+ *
+ * <p>The budget is enforced cooperatively: it is checked whenever the rendering writes output to a
+ * stream that was wrapped by {@link #limit(OutputStream)}, and when {@link #check()} is invoked.
+ * The CPU time of the rendering thread is used if the JVM supports measuring it, otherwise the
+ * elapsed time. Work that a formatter does before it writes its first output is not covered, for
+ * documents the {@link XDocLoader} bounds it by abandoning and interrupting the rendering; an
+ * interrupted rendering fails at its next check.
+ *
+ * <p>Instances are not thread-safe, they must only be used by the thread that renders.
+ */
+class RenderBudget {
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  /** Number of bytes after which writes of single bytes check the time budget. */
+  private static final int CHECK_INTERVAL = 8 << 10;
+
+  private final String formatterName;
+  private final long maxTimeNanos;
+  private final long maxOutputBytes;
+  private final boolean cpuTime;
+  private final long start;
+  private long written;
+  private RenderBudgetExceededException exceeded;
+
+  /**
+   * Starts the budget of a rendering.
+   *
+   * @param formatterName the name of the formatter, used in error messages
+   * @param maxTimeMillis the maximum CPU time in milliseconds, unlimited if not positive
+   * @param maxOutputBytes the maximum output size in bytes, unlimited if not positive
+   */
+  RenderBudget(String formatterName, long maxTimeMillis, long maxOutputBytes) {
+    this.formatterName = formatterName;
+    this.maxTimeNanos = TimeUnit.MILLISECONDS.toNanos(maxTimeMillis);
+    this.maxOutputBytes = maxOutputBytes;
+    this.cpuTime = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+    this.start = now();
+  }
+
+  /**
+   * Checks whether the budget is exceeded.
+   *
+   * <p>Formatters may wrap the exception of a failed write into their own exception, callers that
+   * catch such exceptions should invoke this method to rethrow the budget violation.
+   *
+   * @throws RenderBudgetExceededException thrown if the budget is exceeded
+   */
+  void check() throws RenderBudgetExceededException {
+    if (exceeded != null) {
+      throw exceeded;
+    }
+    if (Thread.currentThread().isInterrupted()) {
+      throw exceeded(String.format("Rendering by formatter %s was abandoned", formatterName));
+    }
+    if (maxTimeNanos > 0 && now() - start > maxTimeNanos) {
+      throw exceeded(
+          String.format(
+              "Rendering by formatter %s exceeded %d ms",
+              formatterName, TimeUnit.NANOSECONDS.toMillis(maxTimeNanos)));
+    }
+  }
+
+  /**
+   * Checks the output size and the time budget for output that was not written through a stream
+   * of this budget.
+   *
+   * @param size the size of the output in bytes
+   * @throws RenderBudgetExceededException thrown if the budget is exceeded
+   */
+  void checkOutput(long size) throws RenderBudgetExceededException {
+    if (maxOutputBytes > 0 && size > maxOutputBytes) {
+      throw exceeded(
+          String.format(
+              "Output of formatter %s exceeded %d bytes", formatterName, maxOutputBytes));
+    }
+    check();
+  }
+
+  /**
+   * Wraps an output stream so that the budget is checked whenever output is written.
+   *
+   * @param out the stream to which the output is written
+   * @return the stream to which the rendering should write
+   */
+  OutputStream limit(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        count(1);
+        out.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        count(len);
+        out.write(b, off, len);
+      }
+    };
+  }
+
+  private void count(int len) throws RenderBudgetExceededException {
+    long before = written;
+    written += len;
+    if (maxOutputBytes > 0 && written > maxOutputBytes) {
+      checkOutput(written);
+    }
+    if (len > 1 || before / CHECK_INTERVAL != written / CHECK_INTERVAL) {
+      check();
+    }
+  }
+
+  private RenderBudgetExceededException exceeded(String message) {
+    exceeded = new RenderBudgetExceededException(message);
+    return exceeded;
+  }
+
+  private long now() {
+    return cpuTime ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+}
@@ -0,0 +1,31 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import java.io.IOException;
+
+/**
+ * Thrown if a rendering exceeds its CPU time or output size budget.
+ *
+ * <p>This is an {@link IOException} so that it is propagated through the output streams that the
+ * formatters write to.
+ */
+public class RenderBudgetExceededException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  RenderBudgetExceededException(String message) {
+    super(message);
+  }
+}
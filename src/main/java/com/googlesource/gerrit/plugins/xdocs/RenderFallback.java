@@ -0,0 +1,95 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.net.HttpHeaders;
+import com.google.gerrit.httpd.resources.Resource;
+import java.io.IOException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Response that is sent instead of a rendered document if the document cannot be rendered right
+ * now.
+ *
+ * <p>If the formatter of the document is saturated, the response is either another view of the
+ * document, e.g. the raw text, or a placeholder that asks the client to retry. If the rendering
+ * exceeded its budget, the response says that the document is too large to be previewed.
+ *
+ * <p>Clients never cache the response, so that they get the rendered document once it can be
+ * rendered again.
+ */
+class RenderFallback extends Resource {
+  private static final long serialVersionUID = 1L;
+
+  private static final String TOO_LARGE =
+      "<html><body><p>The document is too large to be previewed.</p></body></html>";
+
+  private final Resource delegate;
+  private final long retryAfterSeconds;
+
+  /** Serves the given resource without allowing clients to cache it. */
+  static RenderFallback of(Resource delegate) {
+    return new RenderFallback(delegate, 0);
+  }
+
+  /** Serves a placeholder page that reloads itself after the given number of seconds. */
+  static RenderFallback placeholder(long retryAfterSeconds) {
+    return new RenderFallback(null, retryAfterSeconds);
+  }
+
+  /** Serves a page that says that the document is too large to be previewed. */
+  static RenderFallback tooLarge() throws IOException {
+    return of(XDocResource.create(TOO_LARGE.getBytes(UTF_8), "text/html", UTF_8.name(), 0));
+  }
+
+  private RenderFallback(Resource delegate, long retryAfterSeconds) {
+    this.delegate = delegate;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  @Override
+  public int weigh() {
+    return delegate != null ? delegate.weigh() : 0;
+  }
+
+  @Override
+  public void send(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    if (delegate != null) {
+      delegate.send(req, res);
+      return;
+    }
+
+    byte[] html =
+        ("<html><head><meta http-equiv=\"refresh\" content=\""
+                + retryAfterSeconds
+                + "\"></head><body><p>The server is busy rendering other documents."
+                + " This page is reloaded automatically.</p></body></html>")
+            .getBytes(UTF_8);
+    res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    res.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+    res.setContentType("text/html");
+    res.setCharacterEncoding(UTF_8.name());
+    res.setContentLength(html.length);
+    res.getOutputStream().write(html);
+  }
+
+  @Override
+  public boolean isUnchanged(long latestModifiedDate) {
+    return false;
+  }
+}
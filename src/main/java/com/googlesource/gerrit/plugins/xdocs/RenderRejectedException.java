@@ -0,0 +1,24 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+/** Thrown if a document is not rendered because its formatter is saturated. */
+public class RenderRejectedException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  RenderRejectedException(String formatterName) {
+    super(String.format("Too many concurrent renderings by formatter %s", formatterName));
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import com.google.gerrit.metrics.Counter0;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces concurrent computations of the same key.
+ *
+ * <p>The first caller for a key computes the value in its own thread, all callers that ask for the
+ * same key while the computation is in flight wait for its result instead of computing the value
+ * again. The result is not retained once the computation is done, callers should cache it
+ * themselves.
+ */
+class SingleFlight<K, V> {
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final Counter0 coalesced;
+  private final Counter0 timeouts;
+
+  /**
+   * @param coalesced counter that is incremented for each caller that waits for the computation of
+   *     another caller
+   * @param timeouts counter that is incremented for each waiting caller that times out
+   */
+  SingleFlight(Counter0 coalesced, Counter0 timeouts) {
+    this.coalesced = coalesced;
+    this.timeouts = timeouts;
+  }
+
+  /**
+   * Computes the value for a key, or waits for the computation that is already in flight.
+   *
+   * @param key the key
+   * @param loader computes the value if no computation for the key is in flight
+   * @param timeout how long to wait for a computation of another caller
+   * @param unit the unit of the timeout
+   * @return the value
+   * @throws ExecutionException thrown if the computation failed, the cause is the exception thrown
+   *     by the loader
+   * @throws TimeoutException thrown if the computation of another caller didn't finish in time
+   * @throws InterruptedException thrown if the thread was interrupted while waiting
+   */
+  V get(K key, Callable<V> loader, long timeout, TimeUnit unit)
+      throws ExecutionException, TimeoutException, InterruptedException {
+    CompletableFuture<V> f = new CompletableFuture<>();
+    CompletableFuture<V> running = inFlight.putIfAbsent(key, f);
+    if (running != null) {
+      coalesced.increment();
+      try {
+        return running.get(timeout, unit);
+      } catch (TimeoutException e) {
+        timeouts.increment();
+        throw e;
+      }
+    }
+
+    try {
+      V value = loader.call();
+      f.complete(value);
+      return value;
+    } catch (Exception e) {
+      f.completeExceptionally(e);
+      throw new ExecutionException(e);
+    } catch (Error e) {
+      f.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, f);
+    }
+  }
+}
@@ -0,0 +1,273 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.AnonymousUser;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Caches the results of the revision lookups and read permission checks that are done for each
+ * request.
+ *
+ * <p>A page typically embeds many images which are requested right after the page, each of these
+ * requests would otherwise look up HEAD, check the ref permissions, resolve the ref and check the
+ * reachability of the commit again. The entries expire after a short time so that updated refs
+ * and changed permissions become effective quickly.
+ *
+ * <p>Permission results are keyed by the user. Only identified and anonymous users are cached,
+ * for all other users the lookups are always done.
+ *
+ * <p>The tips of the refs are not permission dependent. They are invalidated on each ref update
+ * event, so that they can be kept for longer and used to validate the ETags of documents that are
+ * requested by ref without opening the repository.
+ */
+@Singleton
+public class XDocAccessCache implements GitReferenceUpdatedListener {
+  private final Cache<Key, String> revisions;
+  private final Cache<Key, ObjectId> refs;
+  private final Cache<Key, Boolean> readableCommits;
+  private final AtomicLong refUpdates = new AtomicLong();
+
+  @Inject
+  XDocAccessCache(
+      @Named(Module.X_DOC_REVISIONS) Cache<Key, String> revisions,
+      @Named(Module.X_DOC_REFS) Cache<Key, ObjectId> refs,
+      @Named(Module.X_DOC_READABLE_COMMITS) Cache<Key, Boolean> readableCommits) {
+    this.revisions = revisions;
+    this.refs = refs;
+    this.readableCommits = readableCommits;
+  }
+
+  /**
+   * Returns the revision to which a requested revision is expanded for a user.
+   *
+   * @param user the user
+   * @param project the name of the project
+   * @param revision the requested revision
+   * @param loader expands the revision and checks that the user can read it
+   * @return the expanded revision
+   */
+  public String getRevision(
+      CurrentUser user, Project.NameKey project, String revision, Loader<String> loader)
+      throws ResourceNotFoundException, AuthException, IOException, PermissionBackendException {
+    String userKey = getUserKey(user);
+    if (userKey == null) {
+      return loader.load();
+    }
+    return get(revisions, new Key(userKey, project, revision), loader);
+  }
+
+  /**
+   * Returns the commit to which a ref currently points.
+   *
+   * @param project the name of the project
+   * @param ref the exact name of the ref, revision expressions must not be cached since they are
+   *     not invalidated by ref update events
+   * @param loader resolves the ref
+   * @return the ID of the commit
+   */
+  public ObjectId resolve(Project.NameKey project, String ref, Loader<ObjectId> loader)
+      throws ResourceNotFoundException, AuthException, IOException, PermissionBackendException {
+    Key key = new Key(null, project, ref);
+    ObjectId tip = refs.getIfPresent(key);
+    if (tip != null) {
+      return tip;
+    }
+
+    // a ref update event that arrives while the ref is resolved may carry a newer tip than the
+    // loaded one, in this case the loaded tip must not be cached
+    long updates = refUpdates.get();
+    tip = loader.load();
+    if (refUpdates.get() == updates) {
+      refs.put(key, tip);
+      if (refUpdates.get() != updates) {
+        refs.invalidate(key);
+      }
+    }
+    return tip;
+  }
+
+  /**
+   * Returns the known tip of a ref.
+   *
+   * <p>Nothing is computed, only refs which were recently resolved by {@link
+   * #resolve(Project.NameKey, String, Loader)} are known.
+   *
+   * @param project the name of the project
+   * @param ref the ref
+   * @return the ID of the commit, <code>null</code> if the tip of the ref is not known
+   */
+  public ObjectId getKnownTip(Project.NameKey project, String ref) {
+    return refs.getIfPresent(new Key(null, project, ref));
+  }
+
+  @Override
+  public void onGitReferenceUpdated(Event event) {
+    Project.NameKey project = new Project.NameKey(event.getProjectName());
+    refUpdates.incrementAndGet();
+    refs.invalidate(new Key(null, project, event.getRefName()));
+    // HEAD is symbolic, it is cheaper to resolve it again than to track its target
+    refs.invalidate(new Key(null, project, Constants.HEAD));
+  }
+
+  /**
+   * Checks that a user can read a commit.
+   *
+   * <p>Only successful checks are cached.
+   *
+   * @param user the user
+   * @param project the name of the project
+   * @param revId the ID of the commit
+   * @param check checks the visibility of the commit, throws {@link ResourceNotFoundException} if
+   *     the user cannot read the commit
+   */
+  public void checkCanRead(
+      CurrentUser user, Project.NameKey project, ObjectId revId, Loader<Boolean> check)
+      throws ResourceNotFoundException, AuthException, IOException, PermissionBackendException {
+    String userKey = getUserKey(user);
+    if (userKey == null) {
+      check.load();
+      return;
+    }
+    get(readableCommits, new Key(userKey, project, revId.name()), check);
+  }
+
+  /**
+   * Checks whether a user was recently found to be able to read a commit.
+   *
+   * <p>Nothing is computed, only the cached results of {@link #checkCanRead(CurrentUser,
+   * Project.NameKey, ObjectId, Loader)} are consulted.
+   *
+   * @param user the user
+   * @param project the name of the project
+   * @param revId the ID of the commit
+   * @return <code>true</code> if the user can read the commit, <code>false</code> if it is unknown
+   */
+  public boolean isKnownReadable(CurrentUser user, Project.NameKey project, ObjectId revId) {
+    String userKey = getUserKey(user);
+    return userKey != null
+        && readableCommits.getIfPresent(new Key(userKey, project, revId.name())) != null;
+  }
+
+  private static <V> V get(Cache<Key, V> cache, Key key, Loader<V> loader)
+      throws ResourceNotFoundException, AuthException, IOException, PermissionBackendException {
+    try {
+      return cache.get(key, loader::load);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, ResourceNotFoundException.class);
+      Throwables.throwIfInstanceOf(cause, AuthException.class);
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfInstanceOf(cause, PermissionBackendException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
+  private static String getUserKey(CurrentUser user) {
+    if (user.isIdentifiedUser()) {
+      return user.getAccountId().toString();
+    } else if (user instanceof AnonymousUser) {
+      return "anonymous";
+    }
+    return null;
+  }
+
+  @FunctionalInterface
+  public interface Loader<V> {
+    V load()
+        throws ResourceNotFoundException, AuthException, IOException, PermissionBackendException;
+  }
+
+  public static class Key {
+    private final String user;
+    private final Project.NameKey project;
+    private final String name;
+
+    Key(String user, Project.NameKey project, String name) {
+      this.user = user;
+      this.project = project;
+      this.name = name;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(user, project, name);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof Key) {
+        Key k = (Key) other;
+        return Objects.equals(user, k.user)
+            && Objects.equals(project, k.project)
+            && Objects.equals(name, k.name);
+      }
+      return false;
+    }
+  }
+
+  public static class Module extends CacheModule {
+    static final String X_DOC_REVISIONS = "x_doc_revisions";
+    static final String X_DOC_REFS = "x_doc_refs";
+    static final String X_DOC_READABLE_COMMITS = "x_doc_readable_commits";
+
+    private final boolean replica;
+
+    /**
+     * Creates the module.
+     *
+     * @param replica whether the server is a replica, replicated ref updates don't fire ref update
+     *     events
+     */
+    Module(boolean replica) {
+      this.replica = replica;
+    }
+
+    @Override
+    protected void configure() {
+      cache(X_DOC_REVISIONS, Key.class, String.class)
+          .maximumWeight(4096)
+          .expireAfterWrite(30, TimeUnit.SECONDS);
+      // kept up to date by ref update events, the expiry only covers updates that are done
+      // outside of this server, on replicas these are all updates
+      cache(X_DOC_REFS, Key.class, ObjectId.class)
+          .maximumWeight(4096)
+          .expireAfterWrite(replica ? 30 : 600, TimeUnit.SECONDS);
+      cache(X_DOC_READABLE_COMMITS, Key.class, Boolean.class)
+          .maximumWeight(4096)
+          .expireAfterWrite(30, TimeUnit.SECONDS);
+    }
+  }
+}
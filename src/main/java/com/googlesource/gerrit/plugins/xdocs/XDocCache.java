@@ -14,30 +14,47 @@
 
 package com.googlesource.gerrit.plugins.xdocs;
 
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
 import com.google.common.cache.LoadingCache;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.gerrit.httpd.resources.Resource;
 import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import com.googlesource.gerrit.plugins.xdocs.formatter.FormatterUtil;
 import com.googlesource.gerrit.plugins.xdocs.formatter.Formatters.FormatterProvider;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Singleton
 public class XDocCache {
-  private final LoadingCache<String, Resource> cache;
+  private static final Logger log = LoggerFactory.getLogger(XDocCache.class);
+
+  private final LoadingCache<String, byte[]> cache;
+  private final Cache<XDocResourceKey, Resource> tooLarge;
   private final ProjectCache projectCache;
+  private final FormatterUtil formatterUtil;
 
   @Inject
   XDocCache(
-      @Named(XDocLoader.Module.X_DOC_RESOURCES) LoadingCache<String, Resource> cache,
-      ProjectCache projectCache) {
+      @Named(XDocLoader.Module.X_DOC_RESOURCES) LoadingCache<String, byte[]> cache,
+      @Named(Module.X_DOC_TOO_LARGE) Cache<XDocResourceKey, Resource> tooLarge,
+      ProjectCache projectCache,
+      FormatterUtil formatterUtil) {
     this.cache = cache;
+    this.tooLarge = tooLarge;
     this.projectCache = projectCache;
+    this.formatterUtil = formatterUtil;
   }
 
   public Resource get(
@@ -47,26 +64,98 @@ public class XDocCache {
       ObjectId revId,
       ObjectId revIdB,
       DiffMode diffMode) {
+    XDocResourceKey key = getKey(formatter, project, file, revId, revIdB, diffMode);
+    Resource rsc = tooLarge.getIfPresent(key);
+    if (rsc != null) {
+      return rsc;
+    }
+    try {
+      return toResource(cache.getUnchecked(key.asString()));
+    } catch (UncheckedExecutionException e) {
+      if (!(e.getCause() instanceof RenderBudgetExceededException)) {
+        throw e;
+      }
+      log.info(
+          String.format(
+              "Cannot preview %s in project %s: %s",
+              file, project.get(), e.getCause().getMessage()));
+      try {
+        rsc = RenderFallback.tooLarge();
+      } catch (IOException ex) {
+        throw new UncheckedExecutionException(ex);
+      }
+      // remember the failure only for a short time, the budget may be raised
+      tooLarge.put(key, rsc);
+      return rsc;
+    }
+  }
+
+  /**
+   * Returns the resource only if it is already cached.
+   *
+   * @return the cached resource, <code>null</code> if the resource still needs to be rendered
+   */
+  public Resource getIfPresent(
+      FormatterProvider formatter,
+      Project.NameKey project,
+      String file,
+      ObjectId revId,
+      ObjectId revIdB,
+      DiffMode diffMode) {
+    XDocResourceKey key = getKey(formatter, project, file, revId, revIdB, diffMode);
+    Resource rsc = tooLarge.getIfPresent(key);
+    if (rsc != null) {
+      return rsc;
+    }
+    byte[] cached = cache.getIfPresent(key.asString());
+    return cached != null ? toResource(cached) : null;
+  }
+
+  private static Resource toResource(byte[] cached) {
+    try {
+      return XDocResource.fromBytes(cached);
+    } catch (IOException e) {
+      throw new UncheckedExecutionException(e);
+    }
+  }
+
+  XDocResourceKey getKey(
+      FormatterProvider formatter,
+      Project.NameKey project,
+      String file,
+      ObjectId revId,
+      ObjectId revIdB,
+      DiffMode diffMode) {
     ProjectState p = projectCache.get(project);
     ObjectId metaConfigRevId =
         p != null && p.getConfig().getRevision() != null
             ? p.getConfig().getRevision()
             : ObjectId.zeroId();
-    return cache.getUnchecked(
-        (new XDocResourceKey(
-                formatter.getName(),
-                project,
-                file,
-                revId,
-                metaConfigRevId,
-                getParentsHash(project),
-                revIdB,
-                diffMode))
-            .asString());
+    return new XDocResourceKey(
+        formatter.getName(),
+        project,
+        file,
+        revId,
+        metaConfigRevId,
+        getParentsHash(formatter, project),
+        revIdB,
+        diffMode);
   }
 
-  private String getParentsHash(Project.NameKey project) {
+  /**
+   * Computes the hash of the configurations of the parent projects and of the CSS of the formatter.
+   *
+   * <p>The CSS is included since the documents link it by its hash, a change of the global CSS
+   * files must lead to new documents.
+   */
+  private String getParentsHash(FormatterProvider formatter, Project.NameKey project) {
     Hasher h = Hashing.md5().newHasher();
+    try {
+      h.putUnencodedChars(
+          Strings.nullToEmpty(formatterUtil.getCssUrl(formatter.getName(), project.get())));
+    } catch (IOException e) {
+      throw new UncheckedExecutionException(e);
+    }
     ProjectState p = projectCache.get(project);
     if (p != null) {
       for (ProjectState parent : p.parents()) {
@@ -78,4 +167,15 @@ public class XDocCache {
     }
     return h.hash().toString();
   }
+
+  public static class Module extends CacheModule {
+    static final String X_DOC_TOO_LARGE = "x_doc_too_large";
+
+    @Override
+    protected void configure() {
+      cache(X_DOC_TOO_LARGE, XDocResourceKey.class, Resource.class)
+          .maximumWeight(1024)
+          .expireAfterWrite(10, TimeUnit.MINUTES);
+    }
+  }
 }
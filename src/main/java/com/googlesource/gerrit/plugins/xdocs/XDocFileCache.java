@@ -0,0 +1,130 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.util.Objects;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * Caches the blob IDs of files in revisions.
+ *
+ * <p>Since the revision is always a resolved commit ID, positive and negative results never
+ * become stale.
+ */
+@Singleton
+public class XDocFileCache {
+  private final LoadingCache<Key, ObjectId> cache;
+
+  @Inject
+  XDocFileCache(@Named(Module.X_DOC_FILES) LoadingCache<Key, ObjectId> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Checks whether the given path is a file in the given revision.
+   *
+   * @param project the name of the project
+   * @param revId the ID of the commit
+   * @param path the path of the file
+   * @return <code>true</code> if the file exists in the revision, otherwise <code>false</code>
+   */
+  public boolean exists(Project.NameKey project, ObjectId revId, String path) {
+    return getBlobId(project, revId, path) != null;
+  }
+
+  /**
+   * Returns the blob ID of a file in a revision.
+   *
+   * @param project the name of the project
+   * @param revId the ID of the commit
+   * @param path the path of the file
+   * @return the blob ID, <code>null</code> if the file doesn't exist in the revision
+   */
+  public ObjectId getBlobId(Project.NameKey project, ObjectId revId, String path) {
+    ObjectId blobId = cache.getUnchecked(new Key(project, revId, path));
+    return !ObjectId.zeroId().equals(blobId) ? blobId : null;
+  }
+
+  public static class Key {
+    private final Project.NameKey project;
+    private final ObjectId revId;
+    private final String path;
+
+    Key(Project.NameKey project, ObjectId revId, String path) {
+      this.project = project;
+      this.revId = revId.copy();
+      this.path = path;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, revId, path);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof Key) {
+        Key k = (Key) other;
+        return Objects.equals(project, k.project)
+            && Objects.equals(revId, k.revId)
+            && Objects.equals(path, k.path);
+      }
+      return false;
+    }
+  }
+
+  static class Loader extends CacheLoader<Key, ObjectId> {
+    private final GitRepositoryManager repoManager;
+
+    @Inject
+    Loader(GitRepositoryManager repoManager) {
+      this.repoManager = repoManager;
+    }
+
+    @Override
+    public ObjectId load(Key key) throws Exception {
+      try (Repository repo = repoManager.openRepository(key.project);
+          RevWalk rw = new RevWalk(repo);
+          TreeWalk tw =
+              TreeWalk.forPath(repo, key.path, rw.parseCommit(key.revId).getTree())) {
+        // the cache cannot hold null values, the zero ID is used for missing files
+        return tw != null && tw.getFileMode(0).getObjectType() == Constants.OBJ_BLOB
+            ? tw.getObjectId(0)
+            : ObjectId.zeroId();
+      }
+    }
+  }
+
+  public static class Module extends CacheModule {
+    static final String X_DOC_FILES = "x_doc_files";
+
+    @Override
+    protected void configure() {
+      cache(X_DOC_FILES, Key.class, ObjectId.class).maximumWeight(4096).loader(Loader.class);
+    }
+  }
+}
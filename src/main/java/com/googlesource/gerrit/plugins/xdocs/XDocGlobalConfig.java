@@ -25,16 +25,36 @@ import org.eclipse.jgit.lib.Config;
 
 public class XDocGlobalConfig {
   public static final String SECTION_FORMATTER = "formatter";
+  public static final String SECTION_MIME_TYPE = "mimeType";
+  public static final String SECTION_PRERENDER = "prerender";
+  public static final String SECTION_RENDER = "render";
   public static final String KEY_ALLOW_HTML = "allowHtml";
+  public static final String KEY_ASYNC = "async";
   public static final String KEY_CSS_THEME = "cssTheme";
   public static final String KEY_ENABLED = "enabled";
   public static final String KEY_EXT = "ext";
   public static final String KEY_FORMATTER = "formatter";
   public static final String KEY_INCLUDE_TOC = "includeToc";
+  public static final String KEY_INDEX_ALL_BRANCHES = "indexAllBranches";
   public static final String KEY_INHERIT_CSS = "inheritCss";
+  public static final String KEY_MAX_CONCURRENT = "maxConcurrent";
+  public static final String KEY_MAX_FILES = "maxFiles";
+  public static final String KEY_MAX_INPUT_SIZE = "maxInputSize";
+  public static final String KEY_MAX_OUTPUT_SIZE = "maxOutputSize";
+  public static final String KEY_MAX_QUEUED = "maxQueued";
+  public static final String KEY_MAX_RENDER_TIME = "maxRenderTime";
   public static final String KEY_MIME_TYPE = "mimeType";
+  public static final String KEY_PERSIST = "persist";
+  public static final String KEY_POOL_BORROW_TIMEOUT = "poolBorrowTimeout";
+  public static final String KEY_POOL_MAX_CONVERSIONS = "poolMaxConversions";
+  public static final String KEY_POOL_SIZE = "poolSize";
   public static final String KEY_PREFIX = "prefix";
   public static final String KEY_PRIO = "prio";
+  public static final String KEY_RETRY_AFTER = "retryAfter";
+  public static final String KEY_THREADS = "threads";
+  public static final String KEY_TIMEOUT = "timeout";
+
+  private static final long DEFAULT_MAX_INPUT_SIZE = 32 << 20;
 
   private final Config cfg;
 
@@ -46,6 +66,39 @@ public class XDocGlobalConfig {
     return new ConfigSection(cfg, SECTION_FORMATTER, formatterName);
   }
 
+  public ConfigSection getPrerenderConfig() {
+    return new ConfigSection(cfg, SECTION_PRERENDER);
+  }
+
+  /**
+   * Returns the maximum size of a file that is rendered or served.
+   *
+   * <p>A limit that is configured for the MIME type of the file takes precedence over the limit
+   * of the formatter.
+   *
+   * @param formatterName the name of the formatter, <code>null</code> if the file is served
+   *     without formatting
+   * @param mimeType the MIME type of the file, may be <code>null</code>
+   * @return the maximum size in bytes, <code>0</code> if the size is not limited
+   */
+  public long getMaxInputSize(String formatterName, String mimeType) {
+    if (mimeType != null) {
+      long max = cfg.getLong(SECTION_MIME_TYPE, mimeType, KEY_MAX_INPUT_SIZE, -1);
+      if (max >= 0) {
+        return max;
+      }
+    }
+    if (formatterName != null) {
+      return cfg.getLong(
+          SECTION_FORMATTER, formatterName, KEY_MAX_INPUT_SIZE, DEFAULT_MAX_INPUT_SIZE);
+    }
+    return DEFAULT_MAX_INPUT_SIZE;
+  }
+
+  public ConfigSection getRenderConfig() {
+    return new ConfigSection(cfg, SECTION_RENDER);
+  }
+
   static void initialize(Config cfg) {
     cfg.setString(SECTION_FORMATTER, AsciidoctorFormatter.NAME, KEY_EXT, "adoc");
     cfg.setStringList(SECTION_FORMATTER, DocxFormatter.NAME, KEY_EXT, Arrays.asList("docx"));
@@ -0,0 +1,183 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.util.Objects;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Caches the formatted HTML of files.
+ *
+ * <p>The HTML of one revision is needed by the plain view and by all diff modes in which the
+ * revision takes part. Caching it separately from the {@link XDocCache} resources avoids that the
+ * same file revision is formatted again for each of these views.
+ *
+ * <p>The HTML is keyed by the blob of the file and by the hash of the effective configuration, so
+ * that a file which is unchanged across many commits is formatted only once. Only if the HTML
+ * includes the revision it is additionally keyed by the commit. Such a blob is recorded with an
+ * entry without commit, so that lookups know that they must include the commit.
+ */
+@Singleton
+public class XDocHtmlCache {
+  private static final Html REVISION_DEPENDENT = new Html(new byte[0], true);
+
+  private final Cache<Key, Html> cache;
+
+  @Inject
+  XDocHtmlCache(@Named(Module.X_DOC_HTML) Cache<Key, Html> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Returns the cached HTML.
+   *
+   * @param key the key without commit
+   * @param revId the commit from which the file is loaded
+   * @return the cached UTF-8 encoded HTML, <code>null</code> if the HTML is not cached
+   */
+  public byte[] get(Key key, ObjectId revId) {
+    Html html = cache.getIfPresent(key);
+    if (html == REVISION_DEPENDENT) {
+      html = cache.getIfPresent(key.forRevision(revId));
+    }
+    return html != null ? html.html : null;
+  }
+
+  /**
+   * Returns the cached HTML only if it doesn't depend on the revision.
+   *
+   * @param key the key without commit
+   * @return the cached UTF-8 encoded HTML, <code>null</code> if the HTML is not cached or if it
+   *     depends on the revision
+   */
+  public byte[] getRevisionIndependent(Key key) {
+    Html html = cache.getIfPresent(key);
+    return html != null && html != REVISION_DEPENDENT ? html.html : null;
+  }
+
+  /**
+   * Stores formatted HTML in the cache.
+   *
+   * @param key the key without commit
+   * @param revId the commit from which the file was loaded
+   * @param html the formatted HTML
+   */
+  public void put(Key key, ObjectId revId, Html html) {
+    if (html.revisionDependent) {
+      cache.put(key, REVISION_DEPENDENT);
+      cache.put(key.forRevision(revId), html);
+    } else {
+      cache.put(key, html);
+    }
+  }
+
+  public static class Key {
+    private final String formatter;
+    private final Project.NameKey project;
+    private final String path;
+    private final ObjectId blobId;
+    private final String configHash;
+    private final ObjectId revId;
+
+    Key(
+        String formatter,
+        Project.NameKey project,
+        String path,
+        ObjectId blobId,
+        String configHash) {
+      this(formatter, project, path, blobId.copy(), configHash, null);
+    }
+
+    private Key(
+        String formatter,
+        Project.NameKey project,
+        String path,
+        ObjectId blobId,
+        String configHash,
+        ObjectId revId) {
+      this.formatter = formatter;
+      this.project = project;
+      this.path = path;
+      this.blobId = blobId;
+      this.configHash = configHash;
+      this.revId = revId;
+    }
+
+    /** Returns the key for the HTML of this file in the given commit. */
+    Key forRevision(ObjectId revId) {
+      return new Key(formatter, project, path, blobId, configHash, revId.copy());
+    }
+
+    int weigh() {
+      return 2 * (formatter.length() + project.get().length() + path.length() + configHash.length())
+          + 2 * 20
+          + 32;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(formatter, project, path, blobId, configHash, revId);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof Key) {
+        Key k = (Key) other;
+        return Objects.equals(formatter, k.formatter)
+            && Objects.equals(project, k.project)
+            && Objects.equals(path, k.path)
+            && Objects.equals(blobId, k.blobId)
+            && Objects.equals(configHash, k.configHash)
+            && Objects.equals(revId, k.revId);
+      }
+      return false;
+    }
+  }
+
+  public static class Html {
+    /** UTF-8 encoded HTML, which needs half the memory of a String for mostly-ASCII documents. */
+    final byte[] html;
+
+    final boolean revisionDependent;
+
+    Html(byte[] html, boolean revisionDependent) {
+      this.html = html;
+      this.revisionDependent = revisionDependent;
+    }
+  }
+
+  static class HtmlWeigher implements Weigher<Key, Html> {
+    @Override
+    public int weigh(Key key, Html value) {
+      return key.weigh() + value.html.length;
+    }
+  }
+
+  public static class Module extends CacheModule {
+    static final String X_DOC_HTML = "x_doc_html";
+
+    @Override
+    protected void configure() {
+      cache(X_DOC_HTML, Key.class, Html.class).maximumWeight(8 << 20).weigher(HtmlWeigher.class);
+    }
+  }
+}
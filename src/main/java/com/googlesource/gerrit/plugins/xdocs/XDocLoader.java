@@ -14,44 +14,61 @@
 
 package com.googlesource.gerrit.plugins.xdocs;
 
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_MAX_OUTPUT_SIZE;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_MAX_RENDER_TIME;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_TIMEOUT;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.Weigher;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
 import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
-import com.google.gerrit.httpd.resources.Resource;
-import com.google.gerrit.httpd.resources.SmallResource;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.cache.CacheModule;
 import com.google.gerrit.server.config.CanonicalWebUrl;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.mime.FileTypeRegistry;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.googlesource.gerrit.plugins.xdocs.formatter.Formatter;
+import com.googlesource.gerrit.plugins.xdocs.formatter.FormatterUtil;
 import com.googlesource.gerrit.plugins.xdocs.formatter.Formatters;
 import com.googlesource.gerrit.plugins.xdocs.formatter.Formatters.FormatterProvider;
 import com.googlesource.gerrit.plugins.xdocs.formatter.StreamFormatter;
+import com.googlesource.gerrit.plugins.xdocs.formatter.StreamingFormatter;
 import com.googlesource.gerrit.plugins.xdocs.formatter.StringFormatter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.sax.SAXTransformerFactory;
-import javax.xml.transform.sax.TransformerHandler;
-import javax.xml.transform.stream.StreamResult;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.diff.RawText;
@@ -60,12 +77,9 @@ import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.util.TemporaryBuffer;
 import org.outerj.daisy.diff.HtmlCleaner;
-import org.outerj.daisy.diff.XslFilter;
 import org.outerj.daisy.diff.html.HTMLDiffer;
 import org.outerj.daisy.diff.html.HtmlSaxDiffOutput;
 import org.outerj.daisy.diff.html.TextNodeComparator;
@@ -78,16 +92,34 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
 @Singleton
-public class XDocLoader extends CacheLoader<String, Resource> {
+public class XDocLoader extends CacheLoader<String, byte[]> {
   private static final Logger log = LoggerFactory.getLogger(XDocLoader.class);
 
   private static final String DEFAULT_HOST = "review.example.com";
 
+  private static final int SPOOL_IN_CORE_LIMIT = 1 << 20;
+  private static final long DEFAULT_MAX_OUTPUT_SIZE = 32 << 20;
+  private static final byte[] EMPTY = new byte[0];
+
+  /** Macros that are replaced with values that depend on the revision. */
+  private static final Pattern REVISION_MACROS = Pattern.compile("@(REVISION|GIT_DESCRIPTION)@");
+
   private final GitRepositoryManager repoManager;
   private final Provider<String> webUrl;
   private final String pluginName;
   private final PluginConfigFactory cfgFactory;
   private final Formatters formatters;
+  private final FormatterUtil formatterUtil;
+  private final DiffStylesheets diffStylesheets;
+  private final XDocFileCache fileCache;
+  private final XDocHtmlCache htmlCache;
+  private final SingleFlight<XDocHtmlCache.Key, byte[]> renders;
+  private final ExecutorService renderThreads =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("xdocs-convert-%d").setDaemon(true).build());
+  private final RenderAdmission admission;
+  private final FileTypeRegistry fileTypeRegistry;
+  private final XDocNoteStore noteStore;
 
   @Inject
   XDocLoader(
@@ -95,31 +127,69 @@ public class XDocLoader extends CacheLoader<String, Resource> {
       @CanonicalWebUrl Provider<String> webUrl,
       @PluginName String pluginName,
       PluginConfigFactory cfgFactory,
-      Formatters formatters) {
+      Formatters formatters,
+      FormatterUtil formatterUtil,
+      DiffStylesheets diffStylesheets,
+      XDocFileCache fileCache,
+      XDocHtmlCache htmlCache,
+      RenderAdmission admission,
+      FileTypeRegistry fileTypeRegistry,
+      XDocNoteStore noteStore,
+      MetricMaker metrics) {
     this.repoManager = repoManager;
     this.webUrl = webUrl;
     this.pluginName = pluginName;
     this.cfgFactory = cfgFactory;
     this.formatters = formatters;
+    this.formatterUtil = formatterUtil;
+    this.diffStylesheets = diffStylesheets;
+    this.fileCache = fileCache;
+    this.htmlCache = htmlCache;
+    this.admission = admission;
+    this.fileTypeRegistry = fileTypeRegistry;
+    this.noteStore = noteStore;
+    this.renders =
+        new SingleFlight<>(
+            metrics.newCounter(
+                "render/coalesced_waiters",
+                new Description(
+                        "Requests that waited for the rendering of the same file revision by"
+                            + " another request")
+                    .setRate()
+                    .setUnit("requests")),
+            metrics.newCounter(
+                "render/coalesced_timeouts",
+                new Description(
+                        "Requests that timed out while waiting for the rendering of the same file"
+                            + " revision by another request")
+                    .setRate()
+                    .setUnit("requests")));
   }
 
   @Override
-  public Resource load(String strKey) throws Exception {
-    XDocResourceKey key = XDocResourceKey.fromString(strKey);
+  public byte[] load(String keyString) throws Exception {
+    XDocResourceKey key = XDocResourceKey.fromString(keyString);
     try (Repository repo = repoManager.openRepository(key.getProject())) {
       FormatterProvider formatter = getFormatter(key.getFormatter());
       try (RevWalk rw = new RevWalk(repo)) {
-        String html = null;
+        byte[] html = null;
         if (key.getRevId() != null) {
-          html = loadHtml(formatter, repo, rw, key, key.getRevId());
+          html = loadHtml(formatter, repo, key, key.getRevId());
         }
 
         if (key.getDiffMode() != DiffMode.NO_DIFF) {
-          String htmlB = loadHtml(formatter, repo, rw, key, checkRevId(key.getRevIdB()));
+          byte[] htmlB = loadHtml(formatter, repo, key, checkRevId(key.getRevIdB()));
           if (html == null && htmlB == null) {
             throw new ResourceNotFoundException();
           }
-          html = diffHtml(html, htmlB, key.getDiffMode());
+          html =
+              diffHtml(
+                      html,
+                      htmlB,
+                      key.getDiffMode(),
+                      getLinkedCssUrl(formatter, key, html, htmlB),
+                      newBudget(formatter.getName()))
+                  .getBytes(UTF_8);
         } else {
           if (html == null) {
             throw new ResourceNotFoundException();
@@ -128,12 +198,12 @@ public class XDocLoader extends CacheLoader<String, Resource> {
 
         RevCommit commit =
             rw.parseCommit(MoreObjects.firstNonNull(key.getRevIdB(), key.getRevId()));
-        return getAsHtmlResource(html, commit.getCommitTime());
+        return XDocResource.toBytes(html, "text/html", UTF_8.name(), commit.getCommitTime());
       }
     } catch (ResourceNotFoundException e) {
-      return Resource.NOT_FOUND;
+      return XDocResource.NOT_FOUND;
     } catch (MethodNotAllowedException e) {
-      return Resources.METHOD_NOT_ALLOWED;
+      return XDocResource.METHOD_NOT_ALLOWED;
     }
   }
 
@@ -152,25 +222,237 @@ public class XDocLoader extends CacheLoader<String, Resource> {
     return revId;
   }
 
-  private String loadHtml(
-      FormatterProvider formatter, Repository repo, RevWalk rw, XDocResourceKey key, ObjectId revId)
+  private byte[] loadHtml(
+      FormatterProvider formatter, Repository repo, XDocResourceKey key, ObjectId revId)
+      throws IOException, ResourceNotFoundException, MethodNotAllowedException, GitAPIException,
+          TimeoutException, RenderRejectedException {
+    ObjectId blobId = fileCache.getBlobId(key.getProject(), revId, key.getResource());
+    if (blobId == null) {
+      return null;
+    }
+    String configHash = getConfigHash(formatter.getName(), key);
+    XDocHtmlCache.Key htmlKey =
+        new XDocHtmlCache.Key(
+            formatter.getName(), key.getProject(), key.getResource(), blobId, configHash);
+    byte[] html = htmlCache.get(htmlKey, revId);
+    if (html != null) {
+      return html;
+    }
+
+    // concurrent requests for the same file revision, e.g. from the plain
+    // view and from the diff views, wait for a single rendering
+    try {
+      return renders.get(
+          htmlKey.forRevision(revId),
+          () -> {
+            byte[] cached = htmlCache.get(htmlKey, revId);
+            if (cached != null) {
+              return cached;
+            }
+            ObjectId noteId =
+                noteStore.isEnabled()
+                    ? XDocNoteStore.getNoteId(
+                        formatter.getName(), key.getResource(), blobId, configHash)
+                    : null;
+            if (noteId != null) {
+              // stored HTML is always bounded, even if the rendering is not
+              long maxSize = getMaxOutputSize(formatter.getName());
+              byte[] stored =
+                  noteStore.read(repo, noteId, maxSize > 0 ? maxSize : DEFAULT_MAX_OUTPUT_SIZE);
+              if (stored != null) {
+                htmlCache.put(htmlKey, revId, new XDocHtmlCache.Html(stored, false));
+                return stored;
+              }
+            }
+            XDocHtmlCache.Html formatted =
+                render(
+                    formatter.getName(),
+                    repo,
+                    admission.acquire(formatter.getName()),
+                    () ->
+                        getHtml(
+                            formatter,
+                            repo,
+                            repo.open(blobId),
+                            key.getProject(),
+                            key.getResource(),
+                            revId));
+            htmlCache.put(htmlKey, revId, formatted);
+            return formatted.html;
+          },
+          getRenderTimeoutMillis(),
+          TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfInstanceOf(cause, ResourceNotFoundException.class);
+      Throwables.throwIfInstanceOf(cause, MethodNotAllowedException.class);
+      Throwables.throwIfInstanceOf(cause, GitAPIException.class);
+      Throwables.throwIfInstanceOf(cause, RenderRejectedException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for rendering");
+    }
+  }
+
+  /**
+   * Renders a document within the time budget of its formatter.
+   *
+   * <p>The {@link RenderBudget} is only checked when the formatter writes output, but formatters
+   * like Asciidoctor and Markdown convert the whole document before they write anything. Hence the
+   * document is rendered in a separate thread and the caller stops waiting for it once the time
+   * budget is spent. The abandoned rendering is interrupted and fails at its next budget check. It
+   * keeps the render permit and the repository until it has actually finished, so that runaway
+   * renderings still count against the concurrency limit of the formatter.
+   *
+   * @param formatterName the name of the formatter
+   * @param repo the repository from which the document is rendered
+   * @param permit the render permit, closed when the rendering is done
+   * @param rendering renders the document
+   * @return the rendered document
+   */
+  private XDocHtmlCache.Html render(
+      String formatterName, Repository repo, RenderAdmission.Permit permit, Rendering rendering)
       throws IOException, ResourceNotFoundException, MethodNotAllowedException, GitAPIException {
-    RevCommit commit = rw.parseCommit(revId);
-    RevTree tree = commit.getTree();
-    try (TreeWalk tw = new TreeWalk(repo)) {
-      tw.addTree(tree);
-      tw.setRecursive(true);
-      tw.setFilter(PathFilter.create(key.getResource()));
-      if (!tw.next()) {
-        return null;
+    long maxTimeMillis = getMaxRenderTimeMillis(formatterName);
+    if (maxTimeMillis <= 0) {
+      try (RenderAdmission.Permit p = permit) {
+        return rendering.render();
       }
-      ObjectId objectId = tw.getObjectId(0);
-      ObjectLoader loader = repo.open(objectId);
-      return getHtml(formatter, repo, loader, key.getProject(), key.getResource(), revId);
+    }
+
+    // the caller closes the repository when it stops waiting, the rendering needs its own reference
+    repo.incrementOpen();
+    Future<XDocHtmlCache.Html> f =
+        renderThreads.submit(
+            () -> {
+              try (RenderAdmission.Permit p = permit;
+                  Repository r = repo) {
+                return rendering.render();
+              }
+            });
+    try {
+      return f.get(maxTimeMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      f.cancel(true);
+      throw new RenderBudgetExceededException(
+          String.format(
+              "Rendering by formatter %s exceeded %d ms", formatterName, maxTimeMillis));
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfInstanceOf(cause, ResourceNotFoundException.class);
+      Throwables.throwIfInstanceOf(cause, MethodNotAllowedException.class);
+      Throwables.throwIfInstanceOf(cause, GitAPIException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    } catch (InterruptedException e) {
+      f.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while rendering");
     }
   }
 
-  private String getHtml(
+  private interface Rendering {
+    XDocHtmlCache.Html render()
+        throws IOException, ResourceNotFoundException, MethodNotAllowedException, GitAPIException;
+  }
+
+  /**
+   * Checks the size of a file before any of its content is loaded, so that a huge file that was
+   * committed by mistake is never loaded into memory.
+   */
+  private void checkInputSize(String formatterName, String path, long size)
+      throws RenderBudgetExceededException {
+    String mimeType = fileTypeRegistry.getMimeType(path, (byte[]) null).toString();
+    long max =
+        new XDocGlobalConfig(cfgFactory.getGlobalPluginConfig(pluginName))
+            .getMaxInputSize(formatterName, mimeType);
+    if (max > 0 && size > max) {
+      throw new RenderBudgetExceededException(
+          String.format("File size %d exceeds the maximum input size %d", size, max));
+    }
+  }
+
+  /** Starts the CPU time and output size budget for a rendering by the given formatter. */
+  private RenderBudget newBudget(String formatterName) {
+    ConfigSection cfg = getFormatterConfig(formatterName);
+    return new RenderBudget(
+        formatterName, getMaxRenderTimeMillis(formatterName), getMaxOutputSize(formatterName));
+  }
+
+  /**
+   * Returns the maximum time in milliseconds that a rendering by the given formatter may take, not
+   * positive if the time is unlimited.
+   */
+  private long getMaxRenderTimeMillis(String formatterName) {
+    return getFormatterConfig(formatterName)
+        .getTimeUnit(KEY_MAX_RENDER_TIME, TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the maximum size of the HTML that is rendered by the given formatter, not positive if
+   * the size is unlimited.
+   */
+  private long getMaxOutputSize(String formatterName) {
+    return getFormatterConfig(formatterName).getLong(KEY_MAX_OUTPUT_SIZE, DEFAULT_MAX_OUTPUT_SIZE);
+  }
+
+  /**
+   * Returns the cached HTML of a file revision together with the ID of the note in which it should
+   * be stored by the {@link XDocNoteStore}.
+   *
+   * @param formatter the formatter
+   * @param key the key of the file revision
+   * @return the note ID and the UTF-8 encoded HTML, <code>null</code> if the HTML is not cached or
+   *     if it depends on the revision
+   */
+  Map.Entry<ObjectId, byte[]> getNote(FormatterProvider formatter, XDocResourceKey key) {
+    ObjectId blobId = fileCache.getBlobId(key.getProject(), key.getRevId(), key.getResource());
+    if (blobId == null) {
+      return null;
+    }
+    String configHash = getConfigHash(formatter.getName(), key);
+    byte[] html =
+        htmlCache.getRevisionIndependent(
+            new XDocHtmlCache.Key(
+                formatter.getName(), key.getProject(), key.getResource(), blobId, configHash));
+    if (html == null) {
+      return null;
+    }
+    return Maps.immutableEntry(
+        XDocNoteStore.getNoteId(formatter.getName(), key.getResource(), blobId, configHash), html);
+  }
+
+  private long getRenderTimeoutMillis() {
+    return new XDocGlobalConfig(cfgFactory.getGlobalPluginConfig(pluginName))
+        .getRenderConfig()
+        .getTimeUnit(KEY_TIMEOUT, TimeUnit.SECONDS.toMillis(30), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Computes a hash over the configuration that affects the formatting: the global formatter
+   * configuration and the configurations of the project and its parent projects.
+   */
+  private String getConfigHash(String formatterName, XDocResourceKey key) {
+    Hasher h = Hashing.md5().newHasher();
+    h.putUnencodedChars(key.getMetaConfigRevId() != null ? key.getMetaConfigRevId().name() : "");
+    h.putUnencodedChars(Strings.nullToEmpty(key.getParentsHash()));
+    ConfigSection cfg = getFormatterConfig(formatterName);
+    for (String name : new TreeSet<>(cfg.getNames())) {
+      h.putUnencodedChars(name);
+      for (String value : cfg.getStringList(name)) {
+        h.putChar('=');
+        h.putUnencodedChars(value);
+      }
+      h.putChar('\n');
+    }
+    return h.hash().toString();
+  }
+
+  private XDocHtmlCache.Html getHtml(
       FormatterProvider formatter,
       Repository repo,
       ObjectLoader loader,
@@ -179,96 +461,199 @@ public class XDocLoader extends CacheLoader<String, Resource> {
       ObjectId revId)
       throws MethodNotAllowedException, IOException, GitAPIException, ResourceNotFoundException {
     Formatter f = formatter.get();
+    String name = formatter.getName();
+    checkInputSize(name, path, loader.getSize());
+    RenderBudget budget = newBudget(name);
     if (f instanceof StringFormatter) {
-      return getHtml(formatter.getName(), (StringFormatter) f, repo, loader, project, path, revId);
+      return getHtml(name, (StringFormatter) f, repo, loader, project, path, revId, budget);
+    } else if (f instanceof StreamingFormatter) {
+      return getHtml(name, (StreamingFormatter) f, repo, loader, project, path, revId, budget);
     } else if (f instanceof StreamFormatter) {
-      return getHtml(formatter.getName(), (StreamFormatter) f, repo, loader, project, path, revId);
+      return getHtml(name, (StreamFormatter) f, repo, loader, project, path, revId, budget);
     } else {
       log.error(String.format("Unsupported formatter: %s", formatter.getName()));
       throw new ResourceNotFoundException();
     }
   }
 
-  private String getHtml(
+  private XDocHtmlCache.Html getHtml(
       String formatterName,
       StringFormatter f,
       Repository repo,
       ObjectLoader loader,
       Project.NameKey project,
       String path,
-      ObjectId revId)
+      ObjectId revId,
+      RenderBudget budget)
       throws MethodNotAllowedException, IOException, GitAPIException {
-    byte[] bytes = loader.getBytes(Integer.MAX_VALUE);
+    // the array may be shared with the object cache of JGit, it must not be modified
+    byte[] bytes = loader.getCachedBytes(Integer.MAX_VALUE);
     boolean isBinary = RawText.isBinary(bytes);
     if (formatterName.equals(Formatters.RAW_FORMATTER) && isBinary) {
       throw new MethodNotAllowedException();
     }
     String raw = new String(bytes, UTF_8);
+    boolean revisionDependent = f.dependsOnRevision(raw);
     String abbrRevId = getAbbrRevId(repo, revId);
     if (!isBinary) {
+      revisionDependent |= REVISION_MACROS.matcher(raw).find();
       raw = replaceMacros(repo, project, revId, abbrRevId, raw);
     }
-    return f.format(
-        project.get(), path, revId.getName(), abbrRevId, getFormatterConfig(formatterName), raw);
+    ConfigSection cfg = getFormatterConfig(formatterName);
+    String text = raw;
+    byte[] html =
+        spool(
+            out -> f.format(project.get(), path, revId.getName(), abbrRevId, cfg, text, out),
+            budget);
+    return new XDocHtmlCache.Html(html, revisionDependent);
   }
 
-  private String getHtml(
+  private XDocHtmlCache.Html getHtml(
       String formatterName,
       StreamFormatter f,
       Repository repo,
       ObjectLoader loader,
       Project.NameKey project,
       String path,
-      ObjectId revId)
+      ObjectId revId,
+      RenderBudget budget)
       throws IOException {
     try (InputStream raw = loader.openStream()) {
-      return f.format(
-          project.get(),
-          path,
-          revId.getName(),
-          getAbbrRevId(repo, revId),
-          getFormatterConfig(formatterName),
-          raw);
+      String html =
+          f.format(
+              project.get(),
+              path,
+              revId.getName(),
+              getAbbrRevId(repo, revId),
+              getFormatterConfig(formatterName),
+              raw);
+      byte[] bytes = html.getBytes(UTF_8);
+      budget.checkOutput(bytes.length);
+      return new XDocHtmlCache.Html(bytes, f.dependsOnRevision());
+    }
+  }
+
+  private XDocHtmlCache.Html getHtml(
+      String formatterName,
+      StreamingFormatter f,
+      Repository repo,
+      ObjectLoader loader,
+      Project.NameKey project,
+      String path,
+      ObjectId revId,
+      RenderBudget budget)
+      throws IOException {
+    try (InputStream raw = loader.openStream()) {
+      byte[] html =
+          spool(
+              out ->
+                  f.format(
+                      project.get(),
+                      path,
+                      revId.getName(),
+                      getAbbrRevId(repo, revId),
+                      getFormatterConfig(formatterName),
+                      raw,
+                      out),
+              budget);
+      return new XDocHtmlCache.Html(html, f.dependsOnRevision());
+    }
+  }
+
+  private interface HtmlWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Renders HTML into a buffer. Large documents are spooled to a temporary file while they are
+   * rendered, so that the heap only needs to hold the final document.
+   */
+  private static byte[] spool(HtmlWriter writer, RenderBudget budget) throws IOException {
+    TemporaryBuffer.LocalFile out = new TemporaryBuffer.LocalFile(null, SPOOL_IN_CORE_LIMIT);
+    try {
+      try {
+        writer.writeTo(budget.limit(out));
+      } catch (IOException | RuntimeException e) {
+        // the formatter may have wrapped the budget violation into its own exception
+        budget.check();
+        throw e;
+      }
+      budget.check();
+      out.close();
+      return out.toByteArray();
+    } finally {
+      out.destroy();
     }
   }
 
-  private String diffHtml(String htmlA, String htmlB, DiffMode diffMode)
+  /**
+   * Returns the URL of the formatter CSS if the HTML references it. The diff only preserves the
+   * text of the documents, hence the CSS must be linked from the header of the diff.
+   */
+  private String getLinkedCssUrl(
+      FormatterProvider formatter, XDocResourceKey key, byte[] htmlA, byte[] htmlB)
+      throws IOException {
+    String cssUrl = formatterUtil.getCssUrl(formatter.getName(), key.getProject().get());
+    if (cssUrl == null) {
+      return null;
+    }
+    byte[] url = cssUrl.getBytes(UTF_8);
+    return contains(htmlA, url) || contains(htmlB, url) ? cssUrl : null;
+  }
+
+  private static int length(byte[] html) {
+    return html != null ? html.length : 0;
+  }
+
+  private static boolean contains(byte[] html, byte[] s) {
+    return html != null && Bytes.indexOf(html, s) >= 0;
+  }
+
+  private String diffHtml(
+      byte[] htmlA, byte[] htmlB, DiffMode diffMode, String cssUrl, RenderBudget budget)
       throws IOException, TransformerConfigurationException, SAXException,
           ResourceNotFoundException {
     ByteArrayOutputStream htmlDiff = new ByteArrayOutputStream();
 
-    SAXTransformerFactory tf = (SAXTransformerFactory) TransformerFactory.newInstance();
-    TransformerHandler result = tf.newTransformerHandler();
-    result.setResult(new StreamResult(htmlDiff));
-
-    String htmlHeader = "com/googlesource/gerrit/plugins/xdocs/diff/htmlheader-";
-    switch (diffMode) {
-      case SIDEBYSIDE_A:
-        htmlHeader += "sidebyside-a.xsl";
-        break;
-      case SIDEBYSIDE_B:
-        htmlHeader += "sidebyside-b.xsl";
-        break;
-      case UNIFIED:
-        htmlHeader += "unified.xsl";
-        break;
-      default:
-        log.error(String.format("Unsupported diff mode: %s", diffMode.name()));
-        throw new ResourceNotFoundException();
+    ContentHandler postProcess = diffStylesheets.newHandler(diffMode, budget.limit(htmlDiff));
+    if (postProcess == null) {
+      log.error(String.format("Unsupported diff mode: %s", diffMode.name()));
+      throw new ResourceNotFoundException();
     }
 
-    ContentHandler postProcess = new XslFilter().xsl(result, htmlHeader);
-    postProcess.startDocument();
-    postProcess.startElement("", "diffreport", "diffreport", new AttributesImpl());
-    postProcess.startElement("", "diff", "diff", new AttributesImpl());
-
-    HtmlSaxDiffOutput output = new HtmlSaxDiffOutput(postProcess, "diff");
-    HTMLDiffer differ = new HTMLDiffer(output);
-    differ.diff(getComparator(htmlA), getComparator(htmlB));
-
-    postProcess.endElement("", "diff", "diff");
-    postProcess.endElement("", "diffreport", "diffreport");
-    postProcess.endDocument();
+    // the diff contains the text of both documents, check the output size
+    // budget before starting the expensive diff
+    budget.checkOutput((long) length(htmlA) + length(htmlB));
+
+    try (Timer1.Context ctx = diffStylesheets.startTransform(diffMode)) {
+      postProcess.startDocument();
+      postProcess.startElement("", "diffreport", "diffreport", new AttributesImpl());
+      if (cssUrl != null) {
+        postProcess.startElement("", "css", "css", new AttributesImpl());
+        AttributesImpl attrs = new AttributesImpl();
+        attrs.addAttribute("", "rel", "rel", "CDATA", "stylesheet");
+        attrs.addAttribute("", "type", "type", "CDATA", "text/css");
+        attrs.addAttribute("", "href", "href", "CDATA", cssUrl);
+        postProcess.startElement("", "link", "link", attrs);
+        postProcess.endElement("", "link", "link");
+        postProcess.endElement("", "css", "css");
+      }
+      postProcess.startElement("", "diff", "diff", new AttributesImpl());
+
+      HtmlSaxDiffOutput output = new HtmlSaxDiffOutput(postProcess, "diff");
+      HTMLDiffer differ = new HTMLDiffer(output);
+      differ.diff(getComparator(htmlA), getComparator(htmlB));
+      budget.check();
+
+      postProcess.endElement("", "diff", "diff");
+      postProcess.endElement("", "diffreport", "diffreport");
+      postProcess.endDocument();
+    } catch (SAXException | RuntimeException e) {
+      // the serializer wraps the budget violation of the output stream
+      budget.check();
+      throw e;
+    }
+    budget.check();
 
     return fixStyles(htmlDiff.toString(UTF_8.name()));
   }
@@ -293,9 +678,8 @@ public class XDocLoader extends CacheLoader<String, Resource> {
     return sb.toString();
   }
 
-  private TextNodeComparator getComparator(String html) throws IOException, SAXException {
-    InputSource source =
-        new InputSource(new ByteArrayInputStream(Strings.nullToEmpty(html).getBytes(UTF_8)));
+  private TextNodeComparator getComparator(byte[] html) throws IOException, SAXException {
+    InputSource source = new InputSource(new ByteArrayInputStream(html != null ? html : EMPTY));
     DomTreeBuilder handler = new DomTreeBuilder();
     new HtmlCleaner().cleanAndParse(source, handler);
     return new TextNodeComparator(handler, Locale.US);
@@ -347,15 +731,8 @@ public class XDocLoader extends CacheLoader<String, Resource> {
     return sb.toString();
   }
 
-  private Resource getAsHtmlResource(String html, int lastModified) {
-    return new SmallResource(html.getBytes(UTF_8))
-        .setContentType("text/html")
-        .setCharacterEncoding(UTF_8.name())
-        .setLastModified(lastModified);
-  }
-
   public static class Module extends CacheModule {
-    static final String X_DOC_RESOURCES = "x_doc_resources";
+    static final String X_DOC_RESOURCES = "x_doc_resources_v2";
 
     @Override
     protected void configure() {
@@ -363,8 +740,9 @@ public class XDocLoader extends CacheLoader<String, Resource> {
           new CacheModule() {
             @Override
             protected void configure() {
-              persist(X_DOC_RESOURCES, String.class, Resource.class)
-                  .maximumWeight(2 << 20)
+              persist(X_DOC_RESOURCES, String.class, byte[].class)
+                  .maximumWeight(32 << 20)
+                  .diskLimit(256 << 20)
                   .weigher(XDocResourceWeigher.class)
                   .loader(XDocLoader.class);
             }
@@ -372,10 +750,10 @@ public class XDocLoader extends CacheLoader<String, Resource> {
     }
   }
 
-  private static class XDocResourceWeigher implements Weigher<String, Resource> {
+  private static class XDocResourceWeigher implements Weigher<String, byte[]> {
     @Override
-    public int weigh(String key, Resource value) {
-      return key.length() * 2 + value.weigh();
+    public int weigh(String key, byte[] value) {
+      return 40 + 2 * key.length() + value.length;
     }
   }
 }
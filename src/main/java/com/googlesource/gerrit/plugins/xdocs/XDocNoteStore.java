@@ -0,0 +1,354 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_PERSIST;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.GerritPersonIdent;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores rendered HTML as notes in the repository of the project.
+ *
+ * <p>The notes are stored in the {@code refs/xdocs/rendered} ref. Each note is attached to a
+ * synthetic ID which is computed from the file path, the blob, the formatter, the configuration
+ * hash and the plugin version, so that the HTML of a file revision is found by all servers which
+ * have the same configuration, e.g. by replicas and by servers with an empty cache.
+ *
+ * <p>Only HTML that doesn't depend on the revision is stored. The notes are written by the {@link
+ * XDocPreRenderer} for documents of branches, once per branch update, so that requests never write
+ * to the repository. The ref is rewritten without history on each update, so that replaced trees
+ * can be garbage collected.
+ *
+ * <p>Anyone who can push to the ref can replace the notes, hence each note is authenticated by an
+ * HMAC under a secret key which is stored in the data directory of the plugin. Notes with a
+ * missing or wrong HMAC are ignored. The ref is hidden from git clients by {@link
+ * XDocUploadPackInitializer}, since it contains the HTML of all branches.
+ */
+@Singleton
+public class XDocNoteStore {
+  private static final Logger log = LoggerFactory.getLogger(XDocNoteStore.class);
+
+  public static final String REF_RENDERED = "refs/xdocs/rendered";
+
+  private static final int MAX_LOCK_FAILURE_RETRIES = 3;
+  private static final String KEY_FILE = "rendered.key";
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final int MAC_LENGTH = 32;
+  private static final String VERSION =
+      Strings.nullToEmpty(XDocNoteStore.class.getPackage().getImplementationVersion());
+
+  private final String pluginName;
+  private final PluginConfigFactory cfgFactory;
+  private final Provider<PersonIdent> serverIdent;
+  private final GitRepositoryManager repoManager;
+  private final GitReferenceUpdated gitRefUpdated;
+  private final Path keyFile;
+  private volatile SecretKeySpec key;
+
+  @Inject
+  XDocNoteStore(
+      @PluginName String pluginName,
+      PluginConfigFactory cfgFactory,
+      @PluginData File dataDir,
+      @GerritPersonIdent Provider<PersonIdent> serverIdent,
+      GitRepositoryManager repoManager,
+      GitReferenceUpdated gitRefUpdated) {
+    this.pluginName = pluginName;
+    this.cfgFactory = cfgFactory;
+    this.serverIdent = serverIdent;
+    this.repoManager = repoManager;
+    this.gitRefUpdated = gitRefUpdated;
+    this.keyFile = dataDir.toPath().resolve(KEY_FILE);
+  }
+
+  /** Whether rendered HTML should be stored in the repositories. */
+  public boolean isEnabled() {
+    return new XDocGlobalConfig(cfgFactory.getGlobalPluginConfig(pluginName))
+        .getRenderConfig()
+        .getBoolean(KEY_PERSIST, false);
+  }
+
+  /**
+   * Computes the ID of the note that stores the HTML of a file revision.
+   *
+   * @param formatterName the name of the formatter
+   * @param path the path of the file
+   * @param blobId the ID of the blob of the file
+   * @param configHash the hash of the effective configuration
+   * @return the ID of the note
+   */
+  static ObjectId getNoteId(String formatterName, String path, ObjectId blobId, String configHash) {
+    Hasher h = Hashing.sha1().newHasher();
+    h.putUnencodedChars(VERSION).putChar('\n');
+    h.putUnencodedChars(formatterName).putChar('\n');
+    h.putUnencodedChars(path).putChar('\n');
+    h.putUnencodedChars(blobId.name()).putChar('\n');
+    h.putUnencodedChars(configHash);
+    return ObjectId.fromRaw(h.hash().asBytes());
+  }
+
+  /**
+   * Reads stored HTML.
+   *
+   * @param repo the repository
+   * @param noteId the ID of the note
+   * @param maxSize the maximum size of the HTML in bytes, larger notes are ignored
+   * @return the UTF-8 encoded HTML, <code>null</code> if no HTML is stored, if it cannot be read,
+   *     if it is too large or if it was not written by this server
+   */
+  public byte[] read(Repository repo, ObjectId noteId, long maxSize) {
+    try {
+      Ref ref = repo.exactRef(REF_RENDERED);
+      SecretKeySpec k = getKey(false);
+      if (ref == null || k == null) {
+        return null;
+      }
+      try (RevWalk rw = new RevWalk(repo)) {
+        NoteMap map = NoteMap.read(rw.getObjectReader(), rw.parseCommit(ref.getObjectId()));
+        ObjectId dataId = map.get(noteId);
+        if (dataId == null) {
+          return null;
+        }
+        ObjectLoader loader = rw.getObjectReader().open(dataId, Constants.OBJ_BLOB);
+        long limit = Math.min(maxSize, Integer.MAX_VALUE - MAC_LENGTH) + MAC_LENGTH;
+        if (loader.getSize() < MAC_LENGTH || loader.getSize() > limit) {
+          return null;
+        }
+        byte[] data = loader.getCachedBytes((int) limit);
+        byte[] html = Arrays.copyOfRange(data, MAC_LENGTH, data.length);
+        if (!MessageDigest.isEqual(Arrays.copyOf(data, MAC_LENGTH), mac(k, noteId, html))) {
+          log.warn(
+              String.format(
+                  "Ignoring rendered document %s in %s with invalid HMAC",
+                  noteId.name(), REF_RENDERED));
+          return null;
+        }
+        return html;
+      }
+    } catch (IOException e) {
+      log.warn(String.format("Failed to read rendered document from %s", REF_RENDERED), e);
+      return null;
+    }
+  }
+
+  /**
+   * Stores HTML of a project in a single commit.
+   *
+   * <p>Notes that are already stored are skipped. The ref is updated through Gerrit so that a ref
+   * updated event is fired, e.g. to trigger replication. Failures are logged, since the stored
+   * HTML is only an optimization.
+   *
+   * @param project the name of the project
+   * @param notes the UTF-8 encoded HTML by note ID
+   */
+  public void write(Project.NameKey project, Map<ObjectId, byte[]> notes) {
+    if (notes.isEmpty()) {
+      return;
+    }
+    try (Repository repo = repoManager.openRepository(project)) {
+      for (int i = 0; i <= MAX_LOCK_FAILURE_RETRIES; i++) {
+        if (tryWrite(project, repo, notes)) {
+          return;
+        }
+      }
+      log.debug(
+          String.format(
+              "Gave up storing rendered documents in %s of project %s",
+              REF_RENDERED, project.get()));
+    } catch (IOException e) {
+      log.warn(
+          String.format(
+              "Failed to store rendered documents in %s of project %s",
+              REF_RENDERED, project.get()),
+          e);
+    }
+  }
+
+  /**
+   * Writes the notes.
+   *
+   * @return <code>false</code> if the ref was updated concurrently and the write should be retried
+   */
+  private boolean tryWrite(Project.NameKey project, Repository repo, Map<ObjectId, byte[]> notes)
+      throws IOException {
+    try (RevWalk rw = new RevWalk(repo);
+        ObjectInserter ins = repo.newObjectInserter()) {
+      Ref ref = repo.exactRef(REF_RENDERED);
+      RevCommit old = ref != null ? rw.parseCommit(ref.getObjectId()) : null;
+      NoteMap map =
+          old != null ? NoteMap.read(rw.getObjectReader(), old) : NoteMap.newEmptyMap();
+      SecretKeySpec k = getKey(true);
+      boolean modified = false;
+      for (Map.Entry<ObjectId, byte[]> e : notes.entrySet()) {
+        if (!map.contains(e.getKey())) {
+          byte[] mac = mac(k, e.getKey(), e.getValue());
+          byte[] data = Arrays.copyOf(mac, MAC_LENGTH + e.getValue().length);
+          System.arraycopy(e.getValue(), 0, data, MAC_LENGTH, e.getValue().length);
+          map.set(e.getKey(), ins.insert(Constants.OBJ_BLOB, data));
+          modified = true;
+        }
+      }
+      if (!modified) {
+        return true;
+      }
+
+      PersonIdent ident = serverIdent.get();
+      CommitBuilder cb = new CommitBuilder();
+      cb.setTreeId(map.writeTree(ins));
+      cb.setAuthor(ident);
+      cb.setCommitter(ident);
+      cb.setMessage("Store rendered documents\n");
+      ObjectId commitId = ins.insert(cb);
+      ins.flush();
+
+      RefUpdate ru = repo.updateRef(REF_RENDERED);
+      ru.setExpectedOldObjectId(old != null ? old : ObjectId.zeroId());
+      ru.setNewObjectId(commitId);
+      ru.setForceUpdate(true);
+      ru.disableRefLog();
+      RefUpdate.Result result = ru.update(rw);
+      switch (result) {
+        case NEW:
+        case FORCED:
+        case FAST_FORWARD:
+          gitRefUpdated.fire(project, ru, null);
+          return true;
+        case LOCK_FAILURE:
+          return false;
+        default:
+          throw new IOException(
+              String.format("Failed to update %s: %s", REF_RENDERED, result.name()));
+      }
+    }
+  }
+
+  /** Computes the HMAC of a note, the note ID is included so that notes cannot be swapped. */
+  private static byte[] mac(SecretKeySpec k, ObjectId noteId, byte[] html) throws IOException {
+    byte[] rawId = new byte[Constants.OBJECT_ID_LENGTH];
+    noteId.copyRawTo(rawId, 0);
+    try {
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(k);
+      mac.update(rawId);
+      return mac.doFinal(html);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to compute HMAC of rendered document", e);
+    }
+  }
+
+  /**
+   * Returns the secret key. Servers that should read each other's notes, e.g. a primary and its
+   * replicas, must share the key file.
+   *
+   * @param create whether a new random key should be created if there is none yet
+   * @return the key, <code>null</code> if there is no key and none should be created
+   */
+  private SecretKeySpec getKey(boolean create) throws IOException {
+    SecretKeySpec k = key;
+    if (k == null) {
+      synchronized (this) {
+        k = key;
+        if (k == null) {
+          byte[] raw = loadKey();
+          if (raw == null && create) {
+            raw = createKey();
+          }
+          if (raw != null) {
+            k = new SecretKeySpec(raw, MAC_ALGORITHM);
+            key = k;
+          }
+        }
+      }
+    }
+    return k;
+  }
+
+  private byte[] loadKey() throws IOException {
+    try {
+      byte[] k = Files.readAllBytes(keyFile);
+      if (k.length < MAC_LENGTH) {
+        throw new IOException(String.format("Key file %s is too short", keyFile));
+      }
+      return k;
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  private byte[] createKey() throws IOException {
+    byte[] k = new byte[MAC_LENGTH];
+    new SecureRandom().nextBytes(k);
+    Files.createDirectories(keyFile.getParent());
+    Path tmp;
+    try {
+      tmp =
+          Files.createTempFile(
+              keyFile.getParent(),
+              KEY_FILE,
+              null,
+              PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      tmp = Files.createTempFile(keyFile.getParent(), KEY_FILE, null);
+    }
+    try {
+      Files.write(tmp, k);
+      Files.move(tmp, keyFile, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    log.info(String.format("Created key file %s for rendered documents", keyFile));
+    return k;
+  }
+}
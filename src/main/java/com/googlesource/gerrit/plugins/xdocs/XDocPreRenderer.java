@@ -0,0 +1,349 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_ENABLED;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_INDEX_ALL_BRANCHES;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_MAX_FILES;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_MAX_QUEUED;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_THREADS;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.xdocs.formatter.Formatters;
+import com.googlesource.gerrit.plugins.xdocs.formatter.Formatters.FormatterProvider;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders the index file of the index ref and the configured pre-render paths of a branch into the
+ * {@link XDocCache} as soon as the ref is updated, so that readers don't have to wait for the
+ * rendering.
+ */
+@Singleton
+public class XDocPreRenderer implements GitReferenceUpdatedListener, LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(XDocPreRenderer.class);
+
+  private final String pluginName;
+  private final PluginConfigFactory pluginCfgFactory;
+  private final GitRepositoryManager repoManager;
+  private final ProjectCache projectCache;
+  private final XDocProjectConfig.Factory cfgFactory;
+  private final Formatters formatters;
+  private final XDocCache docCache;
+  private final XDocLoader loader;
+  private final XDocNoteStore noteStore;
+  private final RenderAdmission admission;
+
+  private volatile ThreadPoolExecutor executor;
+  private int maxFiles;
+  private boolean indexAllBranches;
+
+  @Inject
+  XDocPreRenderer(
+      @PluginName String pluginName,
+      PluginConfigFactory pluginCfgFactory,
+      GitRepositoryManager repoManager,
+      ProjectCache projectCache,
+      XDocProjectConfig.Factory cfgFactory,
+      Formatters formatters,
+      XDocCache docCache,
+      XDocLoader loader,
+      XDocNoteStore noteStore,
+      RenderAdmission admission) {
+    this.pluginName = pluginName;
+    this.pluginCfgFactory = pluginCfgFactory;
+    this.repoManager = repoManager;
+    this.projectCache = projectCache;
+    this.cfgFactory = cfgFactory;
+    this.formatters = formatters;
+    this.docCache = docCache;
+    this.loader = loader;
+    this.noteStore = noteStore;
+    this.admission = admission;
+  }
+
+  @Override
+  public void start() {
+    ConfigSection cfg =
+        new XDocGlobalConfig(pluginCfgFactory.getGlobalPluginConfig(pluginName))
+            .getPrerenderConfig();
+    if (!cfg.getBoolean(KEY_ENABLED, false)) {
+      return;
+    }
+    int threads = Math.max(1, cfg.getInt(KEY_THREADS, 1));
+    maxFiles = cfg.getInt(KEY_MAX_FILES, 20);
+    indexAllBranches = cfg.getBoolean(KEY_INDEX_ALL_BRANCHES, false);
+    executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, cfg.getInt(KEY_MAX_QUEUED, 100))),
+            new ThreadFactoryBuilder()
+                .setNameFormat("xdocs-prerender-%d")
+                .setDaemon(true)
+                .build());
+  }
+
+  @Override
+  public void stop() {
+    ThreadPoolExecutor e = executor;
+    executor = null;
+    if (e != null) {
+      e.shutdownNow();
+    }
+  }
+
+  @Override
+  public void onGitReferenceUpdated(Event event) {
+    ThreadPoolExecutor e = executor;
+    if (e == null || event.isDelete()) {
+      return;
+    }
+
+    Project.NameKey project = new Project.NameKey(event.getProjectName());
+    ProjectState state = projectCache.get(project);
+    if (state == null) {
+      return;
+    }
+    XDocProjectConfig cfg = cfgFactory.create(state);
+    String refName = event.getRefName();
+    String indexRef = getFullRefName(cfg.getIndexRef());
+    boolean branch = refName.startsWith(Constants.R_HEADS);
+    if (!branch && !refName.equals(indexRef)) {
+      return;
+    }
+    // HEAD is resolved by the task, it is cheaper than opening the repository for each event
+    boolean mayBeIndexRef =
+        indexAllBranches || refName.equals(indexRef) || Constants.HEAD.equals(indexRef);
+    String[] globs = cfg.getPrerenderPaths();
+    if (!mayBeIndexRef && globs.length == 0) {
+      return;
+    }
+
+    try {
+      e.execute(
+          new PreRenderTask(
+              project,
+              refName,
+              ObjectId.fromString(event.getNewObjectId()),
+              mayBeIndexRef ? indexRef : null,
+              cfg.getIndexFile(),
+              globs,
+              // only documents of branches are stored, the notes ref must not expose
+              // documents of other refs, e.g. of private changes
+              branch && noteStore.isEnabled()));
+    } catch (RejectedExecutionException ex) {
+      log.debug(
+          String.format(
+              "Pre-render queue is full, skip pre-rendering of %s in project %s",
+              event.getRefName(), project.get()));
+    }
+  }
+
+  private static String getFullRefName(String ref) {
+    if (Constants.HEAD.equals(ref) || ref.startsWith(Constants.R_REFS)) {
+      return ref;
+    }
+    return Constants.R_HEADS + ref;
+  }
+
+  private class PreRenderTask implements Runnable {
+    private final Project.NameKey project;
+    private final String refName;
+    private final ObjectId revId;
+    private final String indexRef;
+    private final String indexFile;
+    private final String[] globs;
+    private final boolean persist;
+
+    /**
+     * @param indexRef the full name of the index ref, <code>null</code> if the updated ref is known
+     *     not to be the index ref
+     */
+    PreRenderTask(
+        Project.NameKey project,
+        String refName,
+        ObjectId revId,
+        String indexRef,
+        String indexFile,
+        String[] globs,
+        boolean persist) {
+      this.project = project;
+      this.refName = refName;
+      this.revId = revId;
+      this.indexRef = indexRef;
+      this.indexFile = indexFile;
+      this.globs = globs;
+      this.persist = persist;
+    }
+
+    @Override
+    public void run() {
+      ProjectState state = projectCache.get(project);
+      if (state == null) {
+        return;
+      }
+      Set<String> paths;
+      try {
+        paths = getPaths();
+      } catch (IOException | RuntimeException e) {
+        log.warn(
+            String.format(
+                "Failed to list the documentation of project %s at revision %s",
+                project.get(), revId.name()),
+            e);
+        return;
+      }
+
+      Map<ObjectId, byte[]> notes = new HashMap<>();
+      try (RenderAdmission.Scope background = admission.background()) {
+        for (String path : paths) {
+          // a document that fails or is rejected only skips itself
+          try {
+            preRender(state, path, notes);
+          } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RenderRejectedException) {
+              // readers have priority, the document is rendered when it is requested
+              log.debug(
+                  String.format(
+                      "Skip pre-rendering of %s in project %s at revision %s: %s",
+                      path, project.get(), revId.name(), e.getCause().getMessage()));
+            } else {
+              logFailure(path, e);
+            }
+          } catch (RuntimeException e) {
+            logFailure(path, e);
+          }
+        }
+      }
+      // the documents that were rendered are stored in a single commit
+      noteStore.write(project, notes);
+    }
+
+    private void preRender(ProjectState state, String path, Map<ObjectId, byte[]> notes) {
+      FormatterProvider formatter = formatters.get(state, path);
+      if (formatter == null) {
+        return;
+      }
+      docCache.get(formatter, project, path, revId, null, null);
+      if (persist) {
+        Map.Entry<ObjectId, byte[]> note =
+            loader.getNote(formatter, docCache.getKey(formatter, project, path, revId, null, null));
+        if (note != null) {
+          notes.put(note.getKey(), note.getValue());
+        }
+      }
+    }
+
+    private void logFailure(String path, Exception e) {
+      log.warn(
+          String.format(
+              "Failed to pre-render %s in project %s at revision %s",
+              path, project.get(), revId.name()),
+          e);
+    }
+
+    private Set<String> getPaths() throws IOException {
+      Set<String> paths = new LinkedHashSet<>();
+      try (Repository repo = repoManager.openRepository(project);
+          RevWalk rw = new RevWalk(repo)) {
+        RevTree tree = rw.parseCommit(revId).getTree();
+        if (isIndexRef(repo)) {
+          try (TreeWalk tw = TreeWalk.forPath(repo, indexFile, tree)) {
+            if (tw != null) {
+              paths.add(indexFile);
+            }
+          }
+        }
+        if (globs.length == 0) {
+          return paths;
+        }
+
+        List<PathMatcher> matchers = new ArrayList<>(globs.length);
+        for (String glob : globs) {
+          matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+        try (TreeWalk tw = new TreeWalk(repo)) {
+          tw.addTree(tree);
+          tw.setRecursive(true);
+          while (paths.size() < maxFiles && tw.next()) {
+            String path = tw.getPathString();
+            if (matches(matchers, path)) {
+              paths.add(path);
+            }
+          }
+        }
+      }
+      return paths;
+    }
+
+    private boolean isIndexRef(Repository repo) throws IOException {
+      if (indexRef == null) {
+        return false;
+      }
+      if (indexAllBranches || refName.equals(indexRef)) {
+        return true;
+      }
+      if (Constants.HEAD.equals(indexRef)) {
+        Ref head = repo.exactRef(Constants.HEAD);
+        return head != null && head.isSymbolic() && refName.equals(head.getTarget().getName());
+      }
+      return false;
+    }
+
+    private boolean matches(List<PathMatcher> matchers, String path) {
+      for (PathMatcher m : matchers) {
+        if (m.matches(Paths.get(path))) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -31,6 +31,7 @@ public class XDocProjectConfig {
   private static final String SECTION_WEB = "web";
   private static final String KEY_INDEX_REF = "indexRef";
   private static final String KEY_INDEX_FILE = "indexFile";
+  private static final String KEY_PRERENDER = "prerender";
   private static final String DEFAULT_INDEX_FILE = "README.md";
 
   private final Config cfg;
@@ -52,4 +53,8 @@ public class XDocProjectConfig {
     return MoreObjects.firstNonNull(
         cfg.getString(SECTION_WEB, null, KEY_INDEX_FILE), DEFAULT_INDEX_FILE);
   }
+
+  String[] getPrerenderPaths() {
+    return cfg.getStringList(SECTION_WEB, null, KEY_PRERENDER);
+  }
 }
@@ -0,0 +1,136 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_ASYNC;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_MAX_QUEUED;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_RETRY_AFTER;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_THREADS;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_TIMEOUT;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded executor that renders documents which are not cached yet when the asynchronous render
+ * mode is enabled.
+ *
+ * <p>While a document is rendered by this executor the HTTP request thread is released, so that a
+ * burst of requests for uncached documents cannot exhaust the HTTP thread pool of Gerrit. If the
+ * queue of the executor is full, further render requests are rejected.
+ *
+ * <p>Tasks that are still queued when the executor is stopped are rejected, so that their
+ * requests end right away instead of when they time out.
+ */
+@Singleton
+public class XDocRenderExecutor implements LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(XDocRenderExecutor.class);
+
+  /** Task that renders a document and sends the response. */
+  public interface Task extends Runnable {
+    /** Responds to the request without rendering the document. */
+    void reject();
+  }
+
+  private final String pluginName;
+  private final PluginConfigFactory pluginCfgFactory;
+
+  private volatile ThreadPoolExecutor executor;
+  private long timeoutMillis;
+  private long retryAfterSeconds;
+
+  @Inject
+  XDocRenderExecutor(@PluginName String pluginName, PluginConfigFactory pluginCfgFactory) {
+    this.pluginName = pluginName;
+    this.pluginCfgFactory = pluginCfgFactory;
+  }
+
+  @Override
+  public void start() {
+    ConfigSection cfg =
+        new XDocGlobalConfig(pluginCfgFactory.getGlobalPluginConfig(pluginName)).getRenderConfig();
+    timeoutMillis =
+        cfg.getTimeUnit(KEY_TIMEOUT, TimeUnit.SECONDS.toMillis(30), TimeUnit.MILLISECONDS);
+    retryAfterSeconds = Math.max(1, cfg.getTimeUnit(KEY_RETRY_AFTER, 5, TimeUnit.SECONDS));
+    if (!cfg.getBoolean(KEY_ASYNC, false)) {
+      return;
+    }
+    int threads =
+        Math.max(1, cfg.getInt(KEY_THREADS, Runtime.getRuntime().availableProcessors()));
+    executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, cfg.getInt(KEY_MAX_QUEUED, 50))),
+            new ThreadFactoryBuilder().setNameFormat("xdocs-render-%d").setDaemon(true).build());
+  }
+
+  @Override
+  public void stop() {
+    ThreadPoolExecutor e = executor;
+    executor = null;
+    if (e != null) {
+      for (Runnable task : e.shutdownNow()) {
+        try {
+          ((Task) task).reject();
+        } catch (RuntimeException ex) {
+          log.warn("Failed to reject render task on shutdown", ex);
+        }
+      }
+    }
+  }
+
+  /** Whether documents should be rendered asynchronously. */
+  public boolean isEnabled() {
+    return executor != null;
+  }
+
+  /**
+   * Schedules the rendering of a document.
+   *
+   * @param task the task that renders the document and sends the response
+   * @throws RejectedExecutionException thrown if the queue is full or if the asynchronous render
+   *     mode is disabled, the task is not rejected in this case
+   */
+  public void execute(Task task) {
+    ThreadPoolExecutor e = executor;
+    if (e == null) {
+      throw new RejectedExecutionException("asynchronous rendering is disabled");
+    }
+    e.execute(task);
+  }
+
+  /** Returns how long a request may wait for the rendering in milliseconds. */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /** Returns the number of seconds after which rejected requests should be retried. */
+  public long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+}
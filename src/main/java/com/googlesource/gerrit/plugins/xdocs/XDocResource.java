@@ -0,0 +1,280 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.google.gerrit.httpd.resources.Resource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Rendered document in the {@code x_doc_resources_v2} cache.
+ *
+ * <p>The cache stores documents as byte arrays, see {@link #toBytes()}, since the disk tier of the
+ * cache deserializes its values with the class loader of Gerrit, which cannot load plugin
+ * classes. The document is compressed once when it is rendered, and only the compressed variant
+ * is kept, in memory and on disk. Hits of clients that accept gzip are sent without any further
+ * work, the content is only decompressed for the other clients.
+ */
+public class XDocResource extends Resource {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Suffix of the ETag of the gzip-compressed variant, so that each representation has its own
+   * strong ETag.
+   */
+  static final String GZIP_ETAG_SUFFIX = "-gzip";
+
+  private static final byte KIND_DOCUMENT = 0;
+  private static final byte KIND_NOT_FOUND = 1;
+  private static final byte KIND_METHOD_NOT_ALLOWED = 2;
+
+  /** Cached value for {@link Resource#NOT_FOUND}. */
+  static final byte[] NOT_FOUND = {KIND_NOT_FOUND};
+
+  /** Cached value for {@link Resources#METHOD_NOT_ALLOWED}. */
+  static final byte[] METHOD_NOT_ALLOWED = {KIND_METHOD_NOT_ALLOWED};
+
+  private final byte[] buf;
+  private final int offset;
+  private final boolean gzip;
+  private final String contentType;
+  private final String characterEncoding;
+  private final long lastModified;
+
+  /**
+   * Creates a resource and compresses it.
+   *
+   * @param data the uncompressed content
+   * @param contentType the content type
+   * @param characterEncoding the character encoding, may be <code>null</code>
+   * @param lastModified the last modified timestamp
+   * @return the resource
+   * @throws IOException thrown if the content cannot be compressed
+   */
+  static XDocResource create(
+      byte[] data, String contentType, String characterEncoding, long lastModified)
+      throws IOException {
+    return (XDocResource) fromBytes(toBytes(data, contentType, characterEncoding, lastModified));
+  }
+
+  /**
+   * Encodes a document as a byte array for the cache.
+   *
+   * <p>The header with the content type, character encoding and last modified timestamp is
+   * followed by the content, which is gzip-compressed unless compression doesn't make it smaller.
+   *
+   * @param data the uncompressed content
+   * @param contentType the content type
+   * @param characterEncoding the character encoding, may be <code>null</code>
+   * @param lastModified the last modified timestamp
+   * @return the encoded document
+   * @throws IOException thrown if the content cannot be compressed
+   */
+  static byte[] toBytes(
+      byte[] data, String contentType, String characterEncoding, long lastModified)
+      throws IOException {
+    byte[] gzipData = gzip(data);
+    // not worth to send compressed
+    boolean gzip = gzipData.length < data.length;
+    byte[] content = gzip ? gzipData : data;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length + 64);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(KIND_DOCUMENT);
+      out.writeBoolean(gzip);
+      out.writeLong(lastModified);
+      out.writeUTF(contentType);
+      out.writeUTF(Strings.nullToEmpty(characterEncoding));
+      out.write(content);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes a cached value.
+   *
+   * <p>The content is not copied, the returned resource reads it from the given array.
+   *
+   * @param bytes the value from the cache
+   * @return the resource, {@link Resource#NOT_FOUND} or {@link Resources#METHOD_NOT_ALLOWED} for
+   *     the corresponding values
+   * @throws IOException thrown if the value cannot be decoded
+   */
+  static Resource fromBytes(byte[] bytes) throws IOException {
+    switch (bytes[0]) {
+      case KIND_NOT_FOUND:
+        return Resource.NOT_FOUND;
+      case KIND_METHOD_NOT_ALLOWED:
+        return Resources.METHOD_NOT_ALLOWED;
+      case KIND_DOCUMENT:
+        break;
+      default:
+        throw new IOException(String.format("Unknown kind of cached resource: %d", bytes[0]));
+    }
+    ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+    DataInputStream din = new DataInputStream(in);
+    din.readByte();
+    boolean gzip = din.readBoolean();
+    long lastModified = din.readLong();
+    String contentType = din.readUTF();
+    String characterEncoding = Strings.emptyToNull(din.readUTF());
+    return new XDocResource(
+        bytes, bytes.length - in.available(), gzip, contentType, characterEncoding, lastModified);
+  }
+
+  private XDocResource(
+      byte[] buf,
+      int offset,
+      boolean gzip,
+      String contentType,
+      String characterEncoding,
+      long lastModified) {
+    this.buf = buf;
+    this.offset = offset;
+    this.gzip = gzip;
+    this.contentType = contentType;
+    this.characterEncoding = characterEncoding;
+    this.lastModified = lastModified;
+  }
+
+  @Override
+  public int weigh() {
+    return contentType.length() * 2 + buf.length;
+  }
+
+  @Override
+  public void send(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    if (0 < lastModified) {
+      long ifModifiedSince = req.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+      if (ifModifiedSince > 0 && ifModifiedSince == lastModified) {
+        res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      res.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+    }
+    res.setContentType(contentType);
+    if (characterEncoding != null) {
+      res.setCharacterEncoding(characterEncoding);
+    }
+    if (!gzip) {
+      res.setContentLength(buf.length - offset);
+      res.getOutputStream().write(buf, offset, buf.length - offset);
+      return;
+    }
+
+    res.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    if (acceptsGzip(req)) {
+      res.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+      String etag = res.getHeader(HttpHeaders.ETAG);
+      if (etag != null) {
+        res.setHeader(HttpHeaders.ETAG, etag + GZIP_ETAG_SUFFIX);
+      }
+      res.setContentLength(buf.length - offset);
+      res.getOutputStream().write(buf, offset, buf.length - offset);
+    } else {
+      byte[] content = gunzip(buf, offset);
+      res.setContentLength(content.length);
+      res.getOutputStream().write(content);
+    }
+  }
+
+  /**
+   * Checks whether the client accepts gzip encoded content.
+   *
+   * <p>An explicit {@code gzip} entry takes precedence over the {@code *} wildcard, regardless of
+   * the order of the entries. The qvalues are only evaluated to detect if gzip was refused with
+   * {@code q=0}.
+   */
+  static boolean acceptsGzip(HttpServletRequest req) {
+    Enumeration<String> headers = req.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+    if (headers == null) {
+      return false;
+    }
+    Boolean gzip = null;
+    Boolean any = null;
+    while (headers.hasMoreElements()) {
+      for (String coding : headers.nextElement().split(",")) {
+        String[] params = coding.split(";");
+        String name = params[0].trim();
+        if ("gzip".equalsIgnoreCase(name)) {
+          gzip = !isRefused(params) || Boolean.TRUE.equals(gzip);
+        } else if ("*".equals(name)) {
+          any = !isRefused(params) || Boolean.TRUE.equals(any);
+        }
+      }
+    }
+    if (gzip != null) {
+      return gzip;
+    }
+    return Boolean.TRUE.equals(any);
+  }
+
+  private static boolean isRefused(String[] params) {
+    for (int i = 1; i < params.length; i++) {
+      String param = params[i].trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Double.parseDouble(param.substring(2)) == 0;
+        } catch (NumberFormatException e) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether an ETag that was received in an {@code If-None-Match} header matches the ETag of
+   * a resource in any of its encodings.
+   *
+   * @param receivedETag the received ETag, may be <code>null</code>
+   * @param etag the ETag of the uncompressed resource
+   * @return whether the ETag matches
+   */
+  static boolean matchesETag(String receivedETag, String etag) {
+    return receivedETag != null
+        && (receivedETag.equals(etag) || receivedETag.equals(etag + GZIP_ETAG_SUFFIX));
+  }
+
+  @Override
+  public boolean isUnchanged(long latestModifiedDate) {
+    return lastModified == latestModifiedDate;
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+    try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+      gz.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] gunzip(byte[] data, int offset) throws IOException {
+    try (GZIPInputStream in =
+        new GZIPInputStream(new ByteArrayInputStream(data, offset, data.length - offset))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+}
@@ -14,13 +14,38 @@
 
 package com.googlesource.gerrit.plugins.xdocs;
 
-import com.google.common.base.Strings;
-import com.google.gerrit.extensions.restapi.IdString;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.io.BaseEncoding;
 import com.google.gerrit.reviewdb.client.Project;
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidObjectException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 
+/**
+ * Key of the {@code x_doc_resources_v2} cache.
+ *
+ * <p>The cache is keyed by the {@link #asString()} form of the key, since the disk tier of the
+ * cache deserializes its keys with the class loader of Gerrit, which cannot load plugin classes.
+ * The string is the base64 encoded compact binary form of the key, see {@link #encode()}.
+ */
 public class XDocResourceKey {
+  private static final int VERSION = 1;
+  private static final int HAS_RESOURCE = 1;
+  private static final int HAS_REV_ID = 1 << 1;
+  private static final int HAS_META_CONFIG_REV_ID = 1 << 2;
+  private static final int HAS_PARENTS_HASH = 1 << 3;
+  private static final int HAS_REV_ID_B = 1 << 4;
+
+  /** Formatter and project names are shared by many keys. */
+  private static final Interner<String> NAMES = Interners.newWeakInterner();
+
   private final String formatter;
   private final Project.NameKey project;
   private final String resource;
@@ -39,8 +64,8 @@ public class XDocResourceKey {
       String parentsHash,
       ObjectId revIdB,
       DiffMode diffMode) {
-    this.formatter = formatter;
-    this.project = project;
+    this.formatter = NAMES.intern(formatter);
+    this.project = new Project.NameKey(NAMES.intern(project.get()));
     this.resource = r;
     this.revId = revId;
     this.metaConfigRevId = metaConfigRevId;
@@ -65,6 +90,14 @@ public class XDocResourceKey {
     return revId;
   }
 
+  public ObjectId getMetaConfigRevId() {
+    return metaConfigRevId;
+  }
+
+  public String getParentsHash() {
+    return parentsHash;
+  }
+
   public ObjectId getRevIdB() {
     return revIdB;
   }
@@ -95,72 +128,155 @@ public class XDocResourceKey {
     return false;
   }
 
+  /**
+   * Returns the key of the {@code x_doc_resources_v2} cache.
+   *
+   * @return the base64 encoded binary form of this key
+   */
   public String asString() {
-    StringBuilder b = new StringBuilder();
-    b.append(IdString.fromDecoded(formatter).encoded());
-    b.append("/");
-    b.append(IdString.fromDecoded(project.get()).encoded());
-    b.append("/");
-    b.append(resource != null ? IdString.fromDecoded(resource).encoded() : "");
-    b.append("/");
-    b.append(revId != null ? revId.name() : "");
-    b.append("/");
-    b.append(metaConfigRevId != null ? metaConfigRevId.name() : "");
-    b.append("/");
-    b.append(Strings.nullToEmpty(parentsHash));
-    b.append("/");
-    b.append(revIdB != null ? revIdB.name() : "");
-    b.append("/");
-    b.append(diffMode.name());
-    return b.toString();
-  }
-
-  public static XDocResourceKey fromString(String str) {
-    String[] s = str.split("/");
-    String formatter = null;
-    String project = null;
-    String file = null;
-    String revision = null;
-    String metaConfigRevision = null;
-    String parentsHash = null;
-    String revisionB = null;
-    String diffMode = null;
-    if (s.length > 0) {
-      formatter = IdString.fromUrl(s[0]).get();
+    return BaseEncoding.base64Url().omitPadding().encode(encode());
+  }
+
+  /**
+   * Parses a key of the {@code x_doc_resources_v2} cache.
+   *
+   * @param key the key as returned by {@link #asString()}
+   * @return the parsed key
+   * @throws InvalidObjectException thrown if the key cannot be parsed
+   */
+  public static XDocResourceKey fromString(String key) throws InvalidObjectException {
+    byte[] data;
+    try {
+      data = BaseEncoding.base64Url().omitPadding().decode(key);
+    } catch (IllegalArgumentException e) {
+      InvalidObjectException ex = new InvalidObjectException("malformed key");
+      ex.initCause(e);
+      throw ex;
     }
-    if (s.length > 1) {
-      project = IdString.fromUrl(s[1]).get();
+    return decode(data);
+  }
+
+  /**
+   * Encodes the key in a compact binary form.
+   *
+   * <p>Object IDs are written as raw 20 byte IDs, the parents hash as raw MD5 bytes and strings as
+   * varint length-prefixed UTF-8.
+   */
+  byte[] encode() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+    int flags = 0;
+    if (resource != null) {
+      flags |= HAS_RESOURCE;
+    }
+    if (revId != null) {
+      flags |= HAS_REV_ID;
+    }
+    if (metaConfigRevId != null) {
+      flags |= HAS_META_CONFIG_REV_ID;
     }
-    if (s.length > 2) {
-      file = IdString.fromUrl(s[2]).get();
+    if (parentsHash != null) {
+      flags |= HAS_PARENTS_HASH;
     }
-    if (s.length > 3) {
-      revision = s[3];
+    if (revIdB != null) {
+      flags |= HAS_REV_ID_B;
+    }
+    out.write(VERSION);
+    out.write(flags);
+    out.write(diffMode.ordinal());
+    writeString(out, formatter);
+    writeString(out, project.get());
+    if (resource != null) {
+      writeString(out, resource);
+    }
+    writeObjectId(out, revId);
+    writeObjectId(out, metaConfigRevId);
+    if (parentsHash != null) {
+      writeBytes(out, BaseEncoding.base16().lowerCase().decode(parentsHash));
+    }
+    writeObjectId(out, revIdB);
+    return out.toByteArray();
+  }
+
+  static XDocResourceKey decode(byte[] data) throws InvalidObjectException {
+    try {
+      ByteBuffer in = ByteBuffer.wrap(data);
+      if (in.get() != VERSION) {
+        throw new InvalidObjectException("unsupported version");
+      }
+      int flags = in.get();
+      DiffMode diffMode = DiffMode.values()[in.get()];
+      String formatter = readString(in);
+      Project.NameKey project = new Project.NameKey(readString(in));
+      String resource = (flags & HAS_RESOURCE) != 0 ? readString(in) : null;
+      ObjectId revId = readObjectId(in, flags, HAS_REV_ID);
+      ObjectId metaConfigRevId = readObjectId(in, flags, HAS_META_CONFIG_REV_ID);
+      String parentsHash =
+          (flags & HAS_PARENTS_HASH) != 0
+              ? BaseEncoding.base16().lowerCase().encode(readBytes(in))
+              : null;
+      ObjectId revIdB = readObjectId(in, flags, HAS_REV_ID_B);
+      return new XDocResourceKey(
+          formatter, project, resource, revId, metaConfigRevId, parentsHash, revIdB, diffMode);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      InvalidObjectException ex = new InvalidObjectException("truncated key");
+      ex.initCause(e);
+      throw ex;
     }
-    if (s.length > 4) {
-      metaConfigRevision = s[4];
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String s) {
+    writeBytes(out, s.getBytes(UTF_8));
+  }
+
+  private static void writeBytes(ByteArrayOutputStream out, byte[] b) {
+    writeVarInt(out, b.length);
+    out.write(b, 0, b.length);
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int v) {
+    while ((v & ~0x7F) != 0) {
+      out.write((v & 0x7F) | 0x80);
+      v >>>= 7;
     }
-    if (s.length > 5) {
-      parentsHash = s[5];
+    out.write(v);
+  }
+
+  private static void writeObjectId(ByteArrayOutputStream out, ObjectId id) {
+    if (id != null) {
+      byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+      id.copyRawTo(raw, 0);
+      out.write(raw, 0, raw.length);
     }
-    if (s.length > 6) {
-      revisionB = s[6];
+  }
+
+  private static String readString(ByteBuffer in) {
+    return new String(readBytes(in), UTF_8);
+  }
+
+  private static byte[] readBytes(ByteBuffer in) {
+    byte[] b = new byte[readVarInt(in)];
+    in.get(b);
+    return b;
+  }
+
+  private static int readVarInt(ByteBuffer in) {
+    int v = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = in.get();
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return v;
+      }
     }
-    if (s.length > 7) {
-      diffMode = s[7];
+    throw new IndexOutOfBoundsException("malformed varint");
+  }
+
+  private static ObjectId readObjectId(ByteBuffer in, int flags, int flag) {
+    if ((flags & flag) == 0) {
+      return null;
     }
-    return new XDocResourceKey(
-        formatter,
-        new Project.NameKey(project),
-        file,
-        toObjectId(revision),
-        toObjectId(metaConfigRevision),
-        parentsHash,
-        toObjectId(revisionB),
-        DiffMode.valueOf(diffMode));
-  }
-
-  private static ObjectId toObjectId(String id) {
-    return !Strings.isNullOrEmpty(id) ? ObjectId.fromString(id) : null;
+    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+    in.get(raw);
+    return ObjectId.fromRaw(raw);
   }
 }
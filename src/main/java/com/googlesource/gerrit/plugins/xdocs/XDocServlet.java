@@ -22,7 +22,9 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.gerrit.common.data.PatchScript.FileMode;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.restapi.AuthException;
@@ -30,14 +32,16 @@ import com.google.gerrit.extensions.restapi.IdString;
 import com.google.gerrit.extensions.restapi.MethodNotAllowedException;
 import com.google.gerrit.extensions.restapi.ResourceNotFoundException;
 import com.google.gerrit.httpd.resources.Resource;
-import com.google.gerrit.httpd.resources.SmallResource;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.change.FileContentUtil;
+import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.mime.FileTypeRegistry;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.permissions.ProjectPermission;
 import com.google.gerrit.server.permissions.RefPermission;
 import com.google.gerrit.server.project.CommitsCollection;
 import com.google.gerrit.server.project.GetHead;
@@ -50,11 +54,20 @@ import com.google.gwtexpui.server.CacheHeaders;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.xdocs.formatter.FormatterUtil;
 import com.googlesource.gerrit.plugins.xdocs.formatter.Formatters;
 import com.googlesource.gerrit.plugins.xdocs.formatter.Formatters.FormatterProvider;
 import eu.medsea.mimeutil.MimeType;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -69,13 +82,25 @@ import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Singleton
 public class XDocServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
+  private static final Logger log = LoggerFactory.getLogger(XDocServlet.class);
+
+  /** Number of bytes at the start of an image from which its content type is detected. */
+  private static final int MIME_MAGIC_SIZE = 8 << 10;
 
   public static final String PATH_PREFIX = "/project/";
 
+  /**
+   * Path below the project under which the CSS of the formatters is served:
+   * "/project/<project>/-/css/<formatter>/<hash>.css"
+   */
+  public static final String CSS_PATH = "-/css/";
+
   private final String pluginName;
   private final Provider<ReviewDb> db;
   private final ProjectControl.Factory projectControlFactory;
@@ -85,9 +110,13 @@ public class XDocServlet extends HttpServlet {
   private final XDocCache docCache;
   private final FileTypeRegistry fileTypeRegistry;
   private final XDocProjectConfig.Factory cfgFactory;
+  private final PluginConfigFactory pluginCfgFactory;
   private final Formatters formatters;
+  private final FormatterUtil formatterUtil;
   private final CommitsCollection commits;
   private final PermissionBackend permissionBackend;
+  private final XDocRenderExecutor renderExecutor;
+  private final XDocAccessCache accessCache;
 
   @Inject
   XDocServlet(
@@ -100,9 +129,13 @@ public class XDocServlet extends HttpServlet {
       XDocCache cache,
       FileTypeRegistry fileTypeRegistry,
       XDocProjectConfig.Factory cfgFactory,
+      PluginConfigFactory pluginCfgFactory,
       Formatters formatters,
+      FormatterUtil formatterUtil,
       CommitsCollection commits,
-      PermissionBackend permissionBackend) {
+      PermissionBackend permissionBackend,
+      XDocRenderExecutor renderExecutor,
+      XDocAccessCache accessCache) {
     this.pluginName = pluginName;
     this.db = db;
     this.projectControlFactory = projectControlFactory;
@@ -112,9 +145,13 @@ public class XDocServlet extends HttpServlet {
     this.docCache = cache;
     this.fileTypeRegistry = fileTypeRegistry;
     this.cfgFactory = cfgFactory;
+    this.pluginCfgFactory = pluginCfgFactory;
     this.formatters = formatters;
+    this.formatterUtil = formatterUtil;
     this.commits = commits;
     this.permissionBackend = permissionBackend;
+    this.renderExecutor = renderExecutor;
+    this.accessCache = accessCache;
   }
 
   @Override
@@ -124,6 +161,11 @@ public class XDocServlet extends HttpServlet {
 
       ResourceKey key = ResourceKey.fromPath(getEncodedPath(req));
       ProjectState state = getProject(key);
+      if (isImmutableResourceNotModified(req, key)) {
+        res.sendError(SC_NOT_MODIFIED);
+        return;
+      }
+
       XDocProjectConfig cfg = cfgFactory.create(state);
 
       if (key.file == null) {
@@ -131,6 +173,11 @@ public class XDocServlet extends HttpServlet {
         return;
       }
 
+      if (key.revision == null && key.file.startsWith(CSS_PATH)) {
+        sendCss(req, res, key);
+        return;
+      }
+
       MimeType mimeType = fileTypeRegistry.getMimeType(key.file, (byte[]) null);
       mimeType =
           new MimeType(
@@ -147,11 +194,16 @@ public class XDocServlet extends HttpServlet {
                   : key.revision,
               projectControl);
       String revB = getRevision(key.revisionB, projectControl);
+      if (isRefResourceNotModified(req, key, rev, revB)) {
+        res.sendError(SC_NOT_MODIFIED);
+        return;
+      }
 
       try (Repository repo = repoManager.openRepository(key.project)) {
         ObjectId revId =
             resolveRevision(
                 repo,
+                key.project,
                 key.diffMode == DiffMode.NO_DIFF
                     ? MoreObjects.firstNonNull(rev, Constants.HEAD)
                     : rev);
@@ -159,7 +211,7 @@ public class XDocServlet extends HttpServlet {
           validateCanReadCommit(repo, projectControl, revId);
         }
 
-        ObjectId revIdB = resolveRevision(repo, revB);
+        ObjectId revIdB = resolveRevision(repo, key.project, revB);
         if (revIdB != null && ObjectId.isId(revB)) {
           validateCanReadCommit(repo, projectControl, revIdB);
         }
@@ -171,25 +223,32 @@ public class XDocServlet extends HttpServlet {
 
         Resource rsc;
         if (formatter != null) {
-          rsc = docCache.get(formatter, key.project, key.file, revId, revIdB, key.diffMode);
+          if (renderExecutor.isEnabled() && req.isAsyncSupported()) {
+            rsc =
+                docCache.getIfPresent(
+                    formatter, key.project, key.file, revId, revIdB, key.diffMode);
+            if (rsc == null) {
+              // release the request thread while the document is rendered
+              renderAsync(req, res, formatter, key, rev, revId, revIdB);
+              return;
+            }
+          } else {
+            rsc = render(formatter, key, revId, revIdB);
+          }
         } else if (isImage(mimeType)) {
-          rsc = getImageResource(repo, key.diffMode, revId, revIdB, key.file);
+          rsc =
+              getImageResource(
+                  repo,
+                  key.diffMode,
+                  revId,
+                  revIdB,
+                  key.file,
+                  computeETag(key.project, revId, key.file, revIdB, key.diffMode));
         } else {
           rsc = Resource.NOT_FOUND;
         }
 
-        if (rsc != Resource.NOT_FOUND) {
-          res.setHeader(
-              HttpHeaders.ETAG, computeETag(key.project, revId, key.file, revIdB, key.diffMode));
-        }
-        if (key.diffMode == DiffMode.NO_DIFF && rev == null) {
-          // file was loaded from HEAD, since HEAD is modifiable the document
-          // should only be cached for a short period
-          CacheHeaders.setCacheablePrivate(res, 15, TimeUnit.MINUTES, false);
-        } else {
-          CacheHeaders.setCacheablePrivate(res, 7, TimeUnit.DAYS, false);
-        }
-        rsc.send(req, res);
+        send(req, res, rsc, key, rev, revId, revIdB);
         return;
       }
     } catch (RepositoryNotFoundException
@@ -203,9 +262,209 @@ public class XDocServlet extends HttpServlet {
       res.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
     } catch (PermissionBackendException e) {
       //
+    } catch (UncheckedExecutionException e) {
+      if (!isRenderTimeout(e)) {
+        throw e;
+      }
+      sendUnavailable(res);
+    }
+  }
+
+  /**
+   * Whether the rendering failed because the request timed out while waiting for the rendering of
+   * the same document by another request.
+   */
+  private static boolean isRenderTimeout(Exception e) {
+    return e instanceof UncheckedExecutionException && e.getCause() instanceof TimeoutException;
+  }
+
+  private static void send(
+      HttpServletRequest req,
+      HttpServletResponse res,
+      Resource rsc,
+      ResourceKey key,
+      String rev,
+      ObjectId revId,
+      ObjectId revIdB)
+      throws IOException {
+    if (rsc instanceof RenderFallback) {
+      CacheHeaders.setNotCacheable(res);
+      rsc.send(req, res);
+      return;
+    }
+    if (rsc != Resource.NOT_FOUND) {
+      res.setHeader(
+          HttpHeaders.ETAG, computeETag(key.project, revId, key.file, revIdB, key.diffMode));
+    }
+    if (!isId(rev) || (key.diffMode != DiffMode.NO_DIFF && !isId(key.revisionB))) {
+      // file was loaded from a ref, since refs are modifiable the document
+      // must be revalidated, revalidation is cheap since the ETag is computed
+      // from the tips of the refs
+      CacheHeaders.setCacheablePrivate(res, 1, TimeUnit.MINUTES, true);
+    } else {
+      CacheHeaders.setCacheablePrivate(res, 7, TimeUnit.DAYS, false);
+    }
+    rsc.send(req, res);
+  }
+
+  /**
+   * Renders the document.
+   *
+   * <p>If the formatter is saturated the raw text of the document is served instead, if the raw
+   * formatter is saturated as well or if the document has no raw text view, a placeholder is
+   * served.
+   */
+  private Resource render(
+      FormatterProvider formatter, ResourceKey key, ObjectId revId, ObjectId revIdB) {
+    try {
+      return docCache.get(formatter, key.project, key.file, revId, revIdB, key.diffMode);
+    } catch (UncheckedExecutionException e) {
+      if (!(e.getCause() instanceof RenderRejectedException)) {
+        throw e;
+      }
+    }
+
+    FormatterProvider raw = formatters.getRawFormatter();
+    if (raw != null && !raw.getName().equals(formatter.getName())) {
+      try {
+        Resource rsc = docCache.get(raw, key.project, key.file, revId, revIdB, key.diffMode);
+        if (rsc != Resources.METHOD_NOT_ALLOWED) {
+          return RenderFallback.of(rsc);
+        }
+      } catch (UncheckedExecutionException e) {
+        if (!(e.getCause() instanceof RenderRejectedException)) {
+          throw e;
+        }
+      }
+    }
+    return RenderFallback.placeholder(renderExecutor.getRetryAfterSeconds());
+  }
+
+  /**
+   * Renders the document on the render executor and releases the request thread.
+   *
+   * <p>If the render queue is full or if the rendering doesn't finish within the render timeout,
+   * the client is asked to retry later. A rendering that times out still completes in the
+   * background and fills the cache for the retry.
+   */
+  private void renderAsync(
+      HttpServletRequest req,
+      HttpServletResponse res,
+      FormatterProvider formatter,
+      ResourceKey key,
+      String rev,
+      ObjectId revId,
+      ObjectId revIdB)
+      throws IOException {
+    AsyncContext ctx = req.startAsync();
+    ctx.setTimeout(renderExecutor.getTimeoutMillis());
+    AtomicBoolean responded = new AtomicBoolean();
+    ctx.addListener(
+        new AsyncListener() {
+          @Override
+          public void onTimeout(AsyncEvent event) throws IOException {
+            if (responded.compareAndSet(false, true)) {
+              sendUnavailable(res);
+            }
+            // if the rendering has responded it may still be writing the response, the
+            // response is cut off since the request must end when the timeout fires
+            complete(ctx);
+          }
+
+          @Override
+          public void onError(AsyncEvent event) {
+            responded.set(true);
+          }
+
+          @Override
+          public void onComplete(AsyncEvent event) {}
+
+          @Override
+          public void onStartAsync(AsyncEvent event) {}
+        });
+
+    XDocRenderExecutor.Task task =
+        new XDocRenderExecutor.Task() {
+          @Override
+          public void run() {
+            Resource rsc;
+            try {
+              rsc = render(formatter, key, revId, revIdB);
+            } catch (IOException | RuntimeException e) {
+              boolean timedOut = isRenderTimeout(e);
+              if (!timedOut) {
+                log.error(
+                    String.format(
+                        "Failed to render %s in project %s", key.file, key.project.get()),
+                    e);
+              }
+              if (responded.compareAndSet(false, true)) {
+                try {
+                  if (timedOut) {
+                    sendUnavailable(res);
+                  } else {
+                    CacheHeaders.setNotCacheable(res);
+                    res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                  }
+                } catch (IOException | RuntimeException ex) {
+                  // the client is gone
+                } finally {
+                  complete(ctx);
+                }
+              }
+              return;
+            }
+
+            if (responded.compareAndSet(false, true)) {
+              try {
+                send(req, res, rsc, key, rev, revId, revIdB);
+              } catch (IOException | RuntimeException e) {
+                // the client is gone or the request timed out while the response was written
+                log.debug(
+                    String.format(
+                        "Failed to send %s in project %s", key.file, key.project.get()),
+                    e);
+              } finally {
+                complete(ctx);
+              }
+            }
+          }
+
+          @Override
+          public void reject() {
+            if (responded.compareAndSet(false, true)) {
+              try {
+                sendUnavailable(res);
+              } catch (IOException | RuntimeException e) {
+                // the client is gone
+              } finally {
+                complete(ctx);
+              }
+            }
+          }
+        };
+    try {
+      renderExecutor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.reject();
     }
   }
 
+  /** Completes an asynchronous request, unless it was completed already. */
+  private static void complete(AsyncContext ctx) {
+    try {
+      ctx.complete();
+    } catch (IllegalStateException e) {
+      // completed by the timeout or by the rendering
+    }
+  }
+
+  private void sendUnavailable(HttpServletResponse res) throws IOException {
+    CacheHeaders.setNotCacheable(res);
+    res.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(renderExecutor.getRetryAfterSeconds()));
+    res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
   private String getEncodedPath(HttpServletRequest req) {
     String path = req.getRequestURI();
     String prefix = "/plugins/" + pluginName;
@@ -216,7 +475,12 @@ public class XDocServlet extends HttpServlet {
   }
 
   private Resource getImageResource(
-      Repository repo, DiffMode diffMode, ObjectId revId, ObjectId revIdB, String file) {
+      Repository repo,
+      DiffMode diffMode,
+      ObjectId revId,
+      ObjectId revIdB,
+      String file,
+      String etag) {
     ObjectId id =
         diffMode == DiffMode.NO_DIFF || diffMode == DiffMode.SIDEBYSIDE_A ? revId : revIdB;
     try (RevWalk rw = new RevWalk(repo)) {
@@ -231,22 +495,89 @@ public class XDocServlet extends HttpServlet {
         }
         ObjectId objectId = tw.getObjectId(0);
         ObjectLoader loader = repo.open(objectId);
-        byte[] content = loader.getBytes(Integer.MAX_VALUE);
+        String mimeTypeByName = fileTypeRegistry.getMimeType(file, (byte[]) null).toString();
+        long max = getGlobalConfig().getMaxInputSize(null, mimeTypeByName);
+        if (max > 0 && loader.getSize() > max) {
+          return Resource.NOT_FOUND;
+        }
 
-        MimeType mimeType = fileTypeRegistry.getMimeType(file, content);
+        // the content type is detected from the head of the blob so that the content is never
+        // loaded into memory as a whole, the blob is streamed when the response is sent
+        MimeType mimeType = fileTypeRegistry.getMimeType(file, readHead(loader));
         if (!isSafeImage(mimeType)) {
           return Resource.NOT_FOUND;
         }
-        return new SmallResource(content)
-            .setContentType(mimeType.toString())
-            .setCharacterEncoding(UTF_8.name())
-            .setLastModified(commit.getCommitTime());
+        return new BlobResource(loader, etag, mimeType.toString(), commit.getCommitTime());
       }
     } catch (IOException e) {
       return Resource.NOT_FOUND;
     }
   }
 
+  private static byte[] readHead(ObjectLoader loader) throws IOException {
+    if (!loader.isLarge()) {
+      return loader.getCachedBytes();
+    }
+    try (InputStream in = loader.openStream()) {
+      byte[] head = new byte[(int) Math.min(loader.getSize(), MIME_MAGIC_SIZE)];
+      int n = ByteStreams.read(in, head, 0, head.length);
+      return n < head.length ? Arrays.copyOf(head, n) : head;
+    }
+  }
+
+  private void sendCss(HttpServletRequest req, HttpServletResponse res, ResourceKey key)
+      throws ResourceNotFoundException, NoSuchProjectException, IOException,
+          PermissionBackendException {
+    String path = key.file.substring(CSS_PATH.length());
+    int i = path.indexOf('/');
+    if (i <= 0 || !path.endsWith(".css")) {
+      throw new ResourceNotFoundException();
+    }
+    String formatterName = IdString.fromUrl(path.substring(0, i)).get();
+    String hash = path.substring(i + 1, path.length() - ".css".length());
+    if (formatters.getByName(formatterName) == null) {
+      throw new ResourceNotFoundException();
+    }
+
+    ProjectControl projectControl = projectControlFactory.controlFor(key.project);
+    try {
+      permissionBackend
+          .user(projectControl.getUser())
+          .project(key.project)
+          .check(ProjectPermission.ACCESS);
+    } catch (AuthException e) {
+      // Don't leak the project's existence
+      throw new ResourceNotFoundException();
+    }
+
+    String css = formatterUtil.getComposedCss(formatterName, key.project.get());
+    if (css == null) {
+      throw new ResourceNotFoundException();
+    }
+    String currentHash = FormatterUtil.getCssHash(css);
+    if (XDocResource.matchesETag(req.getHeader(HttpHeaders.IF_NONE_MATCH), currentHash)) {
+      res.sendError(SC_NOT_MODIFIED);
+      return;
+    }
+
+    res.setHeader(HttpHeaders.ETAG, currentHash);
+    if (currentHash.equals(hash)) {
+      // the URL changes whenever the CSS changes, hence the CSS under this URL never changes
+      CacheHeaders.setCacheablePrivate(res, 365, TimeUnit.DAYS, false);
+      res.setHeader(
+          HttpHeaders.CACHE_CONTROL, res.getHeader(HttpHeaders.CACHE_CONTROL) + ", immutable");
+    } else {
+      // the document that references the CSS was rendered with an outdated
+      // CSS, serve the current CSS but only cache it for a short period
+      CacheHeaders.setCacheablePrivate(res, 15, TimeUnit.MINUTES, false);
+    }
+    XDocResource.create(css.getBytes(UTF_8), "text/css", UTF_8.name(), 0).send(req, res);
+  }
+
+  private XDocGlobalConfig getGlobalConfig() {
+    return new XDocGlobalConfig(pluginCfgFactory.getGlobalPluginConfig(pluginName));
+  }
+
   private static void validateRequestMethod(HttpServletRequest req)
       throws MethodNotAllowedException {
     if (!("GET".equals(req.getMethod()) || "HEAD".equals(req.getMethod()))) {
@@ -310,6 +641,15 @@ public class XDocServlet extends HttpServlet {
       return revision;
     }
 
+    return accessCache.getRevision(
+        projectControl.getUser(),
+        projectControl.getProject().getNameKey(),
+        revision,
+        () -> expandRevision(revision, projectControl));
+  }
+
+  private String expandRevision(String revision, ProjectControl projectControl)
+      throws ResourceNotFoundException, AuthException, IOException, PermissionBackendException {
     if (Constants.HEAD.equals(revision)) {
       return getHead.get().apply(new ProjectResource(projectControl));
     } else {
@@ -331,12 +671,22 @@ public class XDocServlet extends HttpServlet {
     }
   }
 
-  private static ObjectId resolveRevision(Repository repo, String revision)
-      throws ResourceNotFoundException, IOException {
+  private ObjectId resolveRevision(Repository repo, Project.NameKey project, String revision)
+      throws ResourceNotFoundException, AuthException, IOException, PermissionBackendException {
     if (revision == null) {
       return null;
     }
 
+    // only the tips of refs are kept up to date by ref update events, revision expressions such as
+    // 'refs/heads/master~1' are always resolved
+    if (ObjectId.isId(revision) || repo.exactRef(revision) == null) {
+      return resolveRevision(repo, revision);
+    }
+    return accessCache.resolve(project, revision, () -> resolveRevision(repo, revision));
+  }
+
+  private static ObjectId resolveRevision(Repository repo, String revision)
+      throws ResourceNotFoundException, IOException {
     ObjectId revId = repo.resolve(revision);
     if (revId == null) {
       throw new ResourceNotFoundException();
@@ -345,23 +695,94 @@ public class XDocServlet extends HttpServlet {
   }
 
   private void validateCanReadCommit(Repository repo, ProjectControl projectControl, ObjectId revId)
-      throws ResourceNotFoundException, IOException {
-    try (RevWalk rw = new RevWalk(repo)) {
-      RevCommit commit = rw.parseCommit(revId);
-      ProjectState state = projectControl.getProjectState();
-      if (!commits.canRead(state, repo, commit)) {
-        throw new ResourceNotFoundException();
-      }
+      throws ResourceNotFoundException, AuthException, IOException, PermissionBackendException {
+    accessCache.checkCanRead(
+        projectControl.getUser(),
+        projectControl.getProject().getNameKey(),
+        revId,
+        () -> {
+          try (RevWalk rw = new RevWalk(repo)) {
+            RevCommit commit = rw.parseCommit(revId);
+            ProjectState state = projectControl.getProjectState();
+            if (!commits.canRead(state, repo, commit)) {
+              throw new ResourceNotFoundException();
+            }
+            return true;
+          }
+        });
+  }
+
+  /**
+   * Checks whether a document that is requested by commit IDs is unmodified without accessing the
+   * repository.
+   *
+   * <p>Documents of commit IDs never change, so the ETag can be computed from the request. The
+   * response is only sent if the user was recently found to be able to read the commits, otherwise
+   * the request must go through the full permission checks.
+   */
+  private boolean isImmutableResourceNotModified(HttpServletRequest req, ResourceKey key)
+      throws NoSuchProjectException {
+    String receivedETag = req.getHeader(HttpHeaders.IF_NONE_MATCH);
+    if (receivedETag == null
+        || key.file == null
+        || !isId(key.revision)
+        || (key.diffMode != DiffMode.NO_DIFF && !isId(key.revisionB))) {
+      return false;
+    }
+
+    ObjectId revId = ObjectId.fromString(key.revision);
+    ObjectId revIdB = key.diffMode != DiffMode.NO_DIFF ? ObjectId.fromString(key.revisionB) : null;
+    if (!XDocResource.matchesETag(
+        receivedETag, computeETag(key.project, revId, key.file, revIdB, key.diffMode))) {
+      return false;
+    }
+
+    CurrentUser user = projectControlFactory.controlFor(key.project).getUser();
+    return accessCache.isKnownReadable(user, key.project, revId)
+        && (revIdB == null || accessCache.isKnownReadable(user, key.project, revIdB));
+  }
+
+  /**
+   * Checks whether a document that is requested by refs is unmodified without accessing the
+   * repository.
+   *
+   * <p>The ETag is computed from the known tips of the refs. If a tip is not known the repository
+   * must be accessed to resolve the ref.
+   */
+  private boolean isRefResourceNotModified(
+      HttpServletRequest req, ResourceKey key, String rev, String revB) {
+    if (req.getHeader(HttpHeaders.IF_NONE_MATCH) == null || key.file == null) {
+      return false;
+    }
+
+    ObjectId revId =
+        getKnownTip(
+            key.project,
+            key.diffMode == DiffMode.NO_DIFF ? MoreObjects.firstNonNull(rev, Constants.HEAD) : rev);
+    ObjectId revIdB = getKnownTip(key.project, revB);
+    if (revId == null || (key.diffMode != DiffMode.NO_DIFF && revIdB == null)) {
+      return false;
     }
+    return isResourceNotModified(req, key, revId, revIdB);
+  }
+
+  /** Returns the known tip of a ref, <code>null</code> for commit IDs and unknown refs. */
+  private ObjectId getKnownTip(Project.NameKey project, String ref) {
+    if (ref == null || isId(ref)) {
+      return null;
+    }
+    return accessCache.getKnownTip(project, ref);
+  }
+
+  private static boolean isId(String revision) {
+    return revision != null && ObjectId.isId(revision);
   }
 
   private static boolean isResourceNotModified(
       HttpServletRequest req, ResourceKey key, ObjectId revId, ObjectId revIdB) {
-    String receivedETag = req.getHeader(HttpHeaders.IF_NONE_MATCH);
-    if (receivedETag != null) {
-      return receivedETag.equals(computeETag(key.project, revId, key.file, revIdB, key.diffMode));
-    }
-    return false;
+    return XDocResource.matchesETag(
+        req.getHeader(HttpHeaders.IF_NONE_MATCH),
+        computeETag(key.project, revId, key.file, revIdB, key.diffMode));
   }
 
   private static String computeETag(
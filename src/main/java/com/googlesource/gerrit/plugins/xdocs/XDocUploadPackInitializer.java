@@ -0,0 +1,45 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.UploadPackInitializer;
+import com.google.inject.Singleton;
+import java.util.HashMap;
+import java.util.Map;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.RefFilter;
+import org.eclipse.jgit.transport.UploadPack;
+
+/**
+ * Hides the rendered documents of the {@link XDocNoteStore} from git clients.
+ *
+ * <p>The {@code refs/xdocs/rendered} ref contains the HTML of all branches, regardless of their
+ * visibility, hence it is never advertised to fetching clients. Replication pushes the ref from
+ * the server, it is not affected.
+ */
+@Singleton
+class XDocUploadPackInitializer implements UploadPackInitializer {
+  @Override
+  public void init(Project.NameKey project, UploadPack up) {
+    RefFilter filter = up.getRefFilter();
+    up.setRefFilter(
+        refs -> {
+          Map<String, Ref> result = new HashMap<>(filter.filter(refs));
+          result.remove(XDocNoteStore.REF_RENDERED);
+          return result;
+        });
+  }
+}
@@ -20,7 +20,6 @@ import com.google.gerrit.extensions.restapi.Url;
 import com.google.gerrit.extensions.webui.BranchWebLink;
 import com.google.gerrit.extensions.webui.FileWebLink;
 import com.google.gerrit.extensions.webui.ProjectWebLink;
-import com.google.gerrit.httpd.resources.Resource;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.project.ProjectCache;
@@ -45,7 +44,7 @@ public class XDocWebLink implements ProjectWebLink, BranchWebLink, FileWebLink {
 
   private final String pluginName;
   private final GitRepositoryManager repoManager;
-  private final XDocCache docCache;
+  private final XDocFileCache fileCache;
   private final XDocProjectConfig.Factory cfgFactory;
   private final ProjectCache projectCache;
   private final Formatters formatters;
@@ -54,13 +53,13 @@ public class XDocWebLink implements ProjectWebLink, BranchWebLink, FileWebLink {
   XDocWebLink(
       @PluginName String pluginName,
       GitRepositoryManager repoManager,
-      XDocCache cache,
+      XDocFileCache fileCache,
       XDocProjectConfig.Factory cfgFactory,
       ProjectCache projectCache,
       Formatters formatters) {
     this.pluginName = pluginName;
     this.repoManager = repoManager;
-    this.docCache = cache;
+    this.fileCache = fileCache;
     this.cfgFactory = cfgFactory;
     this.projectCache = projectCache;
     this.formatters = formatters;
@@ -105,8 +104,7 @@ public class XDocWebLink implements ProjectWebLink, BranchWebLink, FileWebLink {
       if (revId == null) {
         return null;
       }
-      Resource rsc = docCache.get(formatter, p, fileName, revId, null, null);
-      if (rsc != Resource.NOT_FOUND) {
+      if (fileCache.exists(p, revId, fileName)) {
         StringBuilder url = new StringBuilder();
         if (framed) {
           url.append("#/x/");
@@ -126,7 +124,7 @@ public class XDocWebLink implements ProjectWebLink, BranchWebLink, FileWebLink {
       } else {
         return null;
       }
-    } catch (IOException e) {
+    } catch (IOException | RuntimeException e) {
       log.error("Failed to check for project documentation", e);
       return null;
     }
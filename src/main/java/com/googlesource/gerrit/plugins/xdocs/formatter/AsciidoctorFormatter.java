@@ -16,6 +16,7 @@ package com.googlesource.gerrit.plugins.xdocs.formatter;
 
 import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_ALLOW_HTML;
 import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_INCLUDE_TOC;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -23,9 +24,11 @@ import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.io.Writer;
 import java.util.Properties;
-import org.asciidoctor.Asciidoctor;
 import org.asciidoctor.AttributesBuilder;
 import org.asciidoctor.OptionsBuilder;
 import org.asciidoctor.SafeMode;
@@ -41,13 +44,16 @@ public class AsciidoctorFormatter implements StringFormatter {
   private final Properties attributes;
   private final FormatterUtil util;
   private final Formatters formatters;
+  private final AsciidoctorPool pool;
 
   @Inject
-  public AsciidoctorFormatter(FormatterUtil formatterUtil, Formatters formatters)
+  public AsciidoctorFormatter(
+      FormatterUtil formatterUtil, Formatters formatters, AsciidoctorPool pool)
       throws IOException {
     this.attributes = readAttributes();
     this.util = formatterUtil;
     this.formatters = formatters;
+    this.pool = pool;
   }
 
   @Override
@@ -59,15 +65,52 @@ public class AsciidoctorFormatter implements StringFormatter {
       ConfigSection globalCfg,
       String raw)
       throws IOException {
+    return util.applyCss(convert(projectName, abbrRev, globalCfg, raw), NAME, projectName);
+  }
+
+  @Override
+  public void format(
+      String projectName,
+      String path,
+      String revision,
+      String abbrRev,
+      ConfigSection globalCfg,
+      String raw,
+      OutputStream out)
+      throws IOException {
+    String html = convert(projectName, abbrRev, globalCfg, raw);
+    OutputStream withCss = util.newCssInsertingStream(out, NAME, projectName);
+    try (Writer w = new OutputStreamWriter(withCss, UTF_8)) {
+      w.write(html);
+    }
+  }
+
+  private String convert(String projectName, String abbrRev, ConfigSection globalCfg, String raw)
+      throws IOException {
     if (!globalCfg.getBoolean(KEY_ALLOW_HTML, false)) {
       raw = suppressHtml(raw);
     }
 
     ConfigSection projectCfg = formatters.getFormatterConfig(NAME, projectName);
-    String html =
-        Asciidoctor.Factory.create(AsciidoctorFormatter.class.getClassLoader())
-            .convert(raw, createOptions(projectCfg, abbrRev));
-    return util.applyCss(html, NAME, projectName);
+    try (AsciidoctorPool.Lease asciidoctor = pool.borrow()) {
+      try {
+        return asciidoctor.get().convert(raw, createOptions(projectCfg, abbrRev));
+      } catch (RuntimeException e) {
+        asciidoctor.fail();
+        throw e;
+      } finally {
+        if (Thread.currentThread().isInterrupted()) {
+          // the rendering was abandoned, the interrupt may have left the instance in any state
+          asciidoctor.fail();
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean dependsOnRevision(String raw) {
+    // the abbreviated revision is provided as 'revnumber' attribute
+    return raw.contains("revnumber");
   }
 
   private String suppressHtml(String raw) throws IOException {
@@ -0,0 +1,224 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs.formatter;
+
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_POOL_BORROW_TIMEOUT;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_POOL_MAX_CONVERSIONS;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_POOL_SIZE;
+
+import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
+import com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.asciidoctor.Asciidoctor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of Asciidoctor instances.
+ *
+ * <p>Creating an Asciidoctor instance boots a JRuby runtime, which is far more expensive than the
+ * conversion of a document. The pool keeps up to {@code poolSize} instances alive, pre-warms them
+ * when the plugin is started and recycles each instance after it has done {@code
+ * poolMaxConversions} conversions so that leaks in the Ruby runtime cannot accumulate.
+ */
+@Singleton
+public class AsciidoctorPool implements LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(AsciidoctorPool.class);
+
+  static final int DEFAULT_POOL_SIZE = 2;
+  static final long DEFAULT_BORROW_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+  static final int DEFAULT_MAX_CONVERSIONS = 1000;
+
+  private final int size;
+  private final long borrowTimeoutMs;
+  private final int maxConversions;
+  private final Semaphore permits;
+  private final LinkedBlockingQueue<Instance> idle;
+  private volatile boolean stopped;
+
+  @Inject
+  AsciidoctorPool(@PluginName String pluginName, PluginConfigFactory cfgFactory) {
+    this(
+        new XDocGlobalConfig(cfgFactory.getGlobalPluginConfig(pluginName))
+            .getFormatterConfig(AsciidoctorFormatter.NAME));
+  }
+
+  private AsciidoctorPool(ConfigSection cfg) {
+    this(
+        cfg.getInt(KEY_POOL_SIZE, DEFAULT_POOL_SIZE),
+        cfg.getTimeUnit(
+            KEY_POOL_BORROW_TIMEOUT, DEFAULT_BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS),
+        cfg.getInt(KEY_POOL_MAX_CONVERSIONS, DEFAULT_MAX_CONVERSIONS));
+  }
+
+  AsciidoctorPool(int size, long borrowTimeoutMs, int maxConversions) {
+    this.size = Math.max(1, size);
+    this.borrowTimeoutMs = borrowTimeoutMs;
+    this.maxConversions = maxConversions;
+    this.permits = new Semaphore(this.size, true);
+    this.idle = new LinkedBlockingQueue<>(this.size);
+  }
+
+  @Override
+  public void start() {
+    Thread warmUp =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                for (int i = 0; i < size && !stopped; i++) {
+                  // each instance counts against the pool size while it is created, if no
+                  // permit is left the borrowers create the instances on demand
+                  if (!permits.tryAcquire()) {
+                    break;
+                  }
+                  try {
+                    offer(new Instance(create()));
+                  } catch (RuntimeException e) {
+                    log.warn("Failed to pre-warm Asciidoctor instance", e);
+                    break;
+                  } finally {
+                    permits.release();
+                  }
+                }
+                log.info(String.format("Pre-warmed %d Asciidoctor instance(s)", idle.size()));
+              }
+            },
+            "xdocs-asciidoctor-warmup");
+    warmUp.setDaemon(true);
+    warmUp.start();
+  }
+
+  @Override
+  public void stop() {
+    stopped = true;
+    for (Instance i; (i = idle.poll()) != null; ) {
+      i.shutdown();
+    }
+  }
+
+  /**
+   * Borrows an Asciidoctor instance from the pool.
+   *
+   * <p>The returned lease must be closed to give the instance back to the pool.
+   *
+   * @return the lease for the borrowed Asciidoctor instance
+   * @throws IOException thrown if no instance becomes available within the borrow timeout
+   */
+  public Lease borrow() throws IOException {
+    try {
+      if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+        throw new IOException(
+            String.format(
+                "Timed out after %d ms waiting for an Asciidoctor instance", borrowTimeoutMs));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for an Asciidoctor instance", e);
+    }
+
+    Instance i = idle.poll();
+    if (i == null) {
+      try {
+        i = new Instance(create());
+      } catch (RuntimeException e) {
+        permits.release();
+        throw e;
+      }
+    }
+    return new Lease(i);
+  }
+
+  private void release(Instance i, boolean failed) {
+    try {
+      i.conversions++;
+      if (failed || (maxConversions > 0 && i.conversions >= maxConversions)) {
+        i.shutdown();
+      } else {
+        offer(i);
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  /** Puts an instance into the idle queue, or shuts it down if the pool is full or stopped. */
+  private void offer(Instance i) {
+    if (stopped || !idle.offer(i)) {
+      i.shutdown();
+      return;
+    }
+    // stop() may have drained the idle queue after the check above
+    if (stopped && idle.remove(i)) {
+      i.shutdown();
+    }
+  }
+
+  private static Asciidoctor create() {
+    return Asciidoctor.Factory.create(AsciidoctorPool.class.getClassLoader());
+  }
+
+  private static class Instance {
+    final Asciidoctor asciidoctor;
+    int conversions;
+
+    Instance(Asciidoctor asciidoctor) {
+      this.asciidoctor = asciidoctor;
+    }
+
+    void shutdown() {
+      try {
+        asciidoctor.shutdown();
+      } catch (RuntimeException e) {
+        log.warn("Failed to shut down Asciidoctor instance", e);
+      }
+    }
+  }
+
+  public class Lease implements AutoCloseable {
+    private final Instance instance;
+    private boolean failed;
+    private boolean closed;
+
+    private Lease(Instance instance) {
+      this.instance = instance;
+    }
+
+    public Asciidoctor get() {
+      return instance.asciidoctor;
+    }
+
+    /** Marks the instance as broken so that it is discarded instead of being reused. */
+    public void fail() {
+      failed = true;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        release(instance, failed);
+      }
+    }
+  }
+}
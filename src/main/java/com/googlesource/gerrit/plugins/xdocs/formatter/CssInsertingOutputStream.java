@@ -0,0 +1,167 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs.formatter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that inserts CSS into a UTF-8 encoded HTML document while the document is
+ * written.
+ *
+ * <p>The CSS is inserted in front of the first {@code </head>} tag, so that the browser applies it
+ * before the body is rendered. Once this tag was written, all further content is passed through to
+ * the underlying stream unchanged.
+ *
+ * <p>If the document has no {@code </head>} tag the CSS is inserted in front of the last {@code
+ * </body>} tag. For this only the content after the latest {@code </body>} tag is held back until
+ * either another {@code </body>} tag is found or the stream is closed. If the document has neither
+ * tag no CSS is inserted.
+ *
+ * <p>Closing this stream writes the CSS and the held back tail, but doesn't close the underlying
+ * stream.
+ */
+class CssInsertingOutputStream extends OutputStream {
+  private static final byte[] HEAD_END = "</head>".getBytes(UTF_8);
+  private static final byte[] BODY_END = "</body>".getBytes(UTF_8);
+  private static final byte TAG_START = '<';
+
+  private final OutputStream out;
+  private final byte[] css;
+  private final byte[] pending = new byte[HEAD_END.length];
+  private int matched;
+  private ByteArrayOutputStream tail;
+  private boolean inserted;
+  private boolean closed;
+
+  CssInsertingOutputStream(OutputStream out, byte[] css) {
+    this.out = out;
+    this.css = css;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (inserted) {
+      out.write(b);
+      return;
+    }
+
+    pending[matched++] = (byte) b;
+    boolean headEnd = isPrefix(HEAD_END);
+    if (headEnd || isPrefix(BODY_END)) {
+      // both tags have the same length
+      if (matched == HEAD_END.length) {
+        matched = 0;
+        onTag(headEnd);
+      }
+      return;
+    }
+
+    // no tag, the last byte may start the next tag
+    matched--;
+    flushPartialMatch();
+    if (b == TAG_START) {
+      pending[matched++] = (byte) b;
+    } else {
+      sink().write(b);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    int end = off + len;
+    while (off < end) {
+      if (inserted) {
+        out.write(b, off, end - off);
+        return;
+      }
+      if (matched == 0) {
+        // pass everything up to the next tag start through in one chunk
+        int p = off;
+        while (p < end && b[p] != TAG_START) {
+          p++;
+        }
+        if (p > off) {
+          sink().write(b, off, p - off);
+          off = p;
+          continue;
+        }
+      }
+      write(b[off++]);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    flushPartialMatch();
+    if (tail != null) {
+      out.write(css);
+      tail.writeTo(out);
+      tail = null;
+    }
+    out.flush();
+  }
+
+  private void onTag(boolean headEnd) throws IOException {
+    if (headEnd) {
+      if (tail != null) {
+        tail.writeTo(out);
+        tail = null;
+      }
+      out.write(css);
+      out.write(HEAD_END);
+      inserted = true;
+    } else {
+      if (tail != null) {
+        // the previous </body> was not the last one
+        tail.writeTo(out);
+      }
+      tail = new ByteArrayOutputStream(64);
+      tail.write(BODY_END, 0, BODY_END.length);
+    }
+  }
+
+  private boolean isPrefix(byte[] tag) {
+    for (int i = 0; i < matched; i++) {
+      if (pending[i] != tag[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void flushPartialMatch() throws IOException {
+    if (matched > 0) {
+      sink().write(pending, 0, matched);
+      matched = 0;
+    }
+  }
+
+  private OutputStream sink() {
+    return tail != null ? tail : out;
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs.formatter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.xdocs.formatter.Formatters.FormatterProvider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.eclipse.jgit.util.TemporaryBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the default CSS files.
+ *
+ * <p>The CSS files that are bundled with the plugin are loaded once when the plugin is started.
+ * The default CSS of formatters that are contributed by other plugins is provided by {@link
+ * Formatter#getDefaultCss()} and is loaded once on first use.
+ */
+@Singleton
+public class DefaultCssRegistry {
+  private static final Logger log = LoggerFactory.getLogger(DefaultCssRegistry.class);
+
+  private static final String RESOURCE_PREFIX = "/com/googlesource/gerrit/plugins/xdocs/";
+
+  private final Formatters formatters;
+  private final ImmutableMap<String, String> bundled;
+  private final ConcurrentMap<String, Optional<String>> contributed;
+
+  @Inject
+  DefaultCssRegistry(Formatters formatters) throws IOException {
+    this.formatters = formatters;
+    this.bundled =
+        ImmutableMap.<String, String>builder()
+            .put(AsciidoctorFormatter.NAME, load("formatter/asciidoctor.css"))
+            .put(DocxFormatter.NAME, load("formatter/docx.css"))
+            .put(ZipFormatter.NAME, load("formatter/zip.css"))
+            .build();
+    this.contributed = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the default CSS of a formatter.
+   *
+   * @param formatterName the name of the formatter
+   * @return the default CSS, empty string if the formatter has no default CSS
+   */
+  public String getFormatterCss(String formatterName) {
+    String css = bundled.get(formatterName);
+    if (css != null) {
+      return css;
+    }
+    return contributed.computeIfAbsent(formatterName, this::loadContributed).orElse("");
+  }
+
+  private Optional<String> loadContributed(String formatterName) {
+    FormatterProvider formatter = formatters.getByName(formatterName);
+    URL url = formatter != null ? formatter.get().getDefaultCss() : null;
+    if (url == null) {
+      log.info(String.format("No default CSS for formatter '%s' found.", formatterName));
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(read(url));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String load(String resource) throws IOException {
+    URL url = DefaultCssRegistry.class.getResource(RESOURCE_PREFIX + resource);
+    if (url == null) {
+      throw new IOException(String.format("Bundled CSS '%s' not found", resource));
+    }
+    return read(url);
+  }
+
+  private static String read(URL url) throws IOException {
+    try (InputStream in = url.openStream();
+        TemporaryBuffer.Heap tmp = new TemporaryBuffer.Heap(128 * 1024)) {
+      tmp.copy(in);
+      return new String(tmp.toByteArray(), UTF_8);
+    }
+  }
+}
@@ -14,20 +14,18 @@
 
 package com.googlesource.gerrit.plugins.xdocs.formatter;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import org.docx4j.Docx4J;
 import org.docx4j.Docx4jProperties;
 import org.docx4j.convert.out.HTMLSettings;
 import org.docx4j.openpackaging.exceptions.Docx4JException;
 import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
 
-public class DocxFormatter implements StreamFormatter {
+public class DocxFormatter implements StreamingFormatter {
   public static final String NAME = "DOCX";
 
   private final FormatterUtil util;
@@ -38,13 +36,14 @@ public class DocxFormatter implements StreamFormatter {
   }
 
   @Override
-  public String format(
+  public void format(
       String projectName,
       String path,
       String revision,
       String abbrRev,
       ConfigSection cfg,
-      InputStream raw)
+      InputStream raw,
+      OutputStream out)
       throws IOException {
     // Docx4J tries to load some resources dynamically. This fails if the Gerrit
     // core classloader is used since it doesn't see the resources that are
@@ -57,10 +56,8 @@ public class DocxFormatter implements StreamFormatter {
       HTMLSettings htmlSettings = Docx4J.createHTMLSettings();
       htmlSettings.setWmlPackage(p);
       Docx4jProperties.setProperty("docx4j.Convert.Out.HTML.OutputMethodXML", true);
-      try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-        Docx4J.toHTML(htmlSettings, out, Docx4J.FLAG_EXPORT_PREFER_XSL);
-        String html = out.toString(UTF_8.name());
-        return util.applyCss(html, NAME, projectName);
+      try (OutputStream html = util.newCssInsertingStream(out, NAME, projectName)) {
+        Docx4J.toHTML(htmlSettings, html, Docx4J.FLAG_EXPORT_PREFER_XSL);
       }
     } catch (Docx4JException e) {
       throw new IOException(e);
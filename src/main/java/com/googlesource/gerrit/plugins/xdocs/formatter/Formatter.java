@@ -15,6 +15,21 @@
 package com.googlesource.gerrit.plugins.xdocs.formatter;
 
 import com.google.gerrit.extensions.annotations.ExtensionPoint;
+import java.net.URL;
 
 @ExtensionPoint
-public interface Formatter {}
+public interface Formatter {
+
+  /**
+   * Returns the default CSS of this formatter.
+   *
+   * <p>The default CSS is used if neither the site nor the project provides a CSS for the
+   * formatter. It is loaded only once and then kept by the plugin.
+   *
+   * @return the URL of the resource that contains the default CSS, <code>null</code> if the
+   *     formatter has no default CSS
+   */
+  default URL getDefaultCss() {
+    return null;
+  }
+}
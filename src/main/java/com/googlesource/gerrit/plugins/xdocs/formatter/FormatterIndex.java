@@ -0,0 +1,228 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs.formatter;
+
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_ENABLED;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_EXT;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_MIME_TYPE;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_PREFIX;
+import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_PRIO;
+
+import com.google.inject.Provider;
+import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
+import com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig;
+import com.googlesource.gerrit.plugins.xdocs.formatter.Formatters.FormatterProvider;
+import eu.medsea.mimeutil.MimeType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Precomputed formatter dispatch index of a project.
+ *
+ * <p>The index maps file extensions and mime types to the formatters that can handle them, so that
+ * resolving the formatter for a file only needs a few hash lookups. It is valid as long as the
+ * global plugin configuration, the registered formatters and the project configurations of the
+ * project and its parents don't change.
+ */
+class FormatterIndex {
+  private final Config globalCfg;
+  private final List<Provider<Formatter>> providers;
+  private final List<ObjectId> configRevisions;
+  private final Map<String, ConfigSection> configs;
+  private final Map<String, List<Entry>> byExt = new HashMap<>();
+  private final List<Entry> anyExt = new ArrayList<>();
+  private final Map<String, List<Entry>> byMimeType = new HashMap<>();
+  private final Map<String, List<Entry>> byMediaType = new HashMap<>();
+  private final PrefixTrie prefixes = new PrefixTrie();
+  private int size;
+
+  FormatterIndex(
+      Config globalCfg,
+      List<Provider<Formatter>> providers,
+      List<ObjectId> configRevisions,
+      Map<String, ConfigSection> configs) {
+    this.globalCfg = globalCfg;
+    this.providers = providers;
+    this.configRevisions = configRevisions;
+    this.configs = configs;
+  }
+
+  void add(String formatterName, Provider<Formatter> provider) {
+    if (!new XDocGlobalConfig(globalCfg)
+        .getFormatterConfig(formatterName)
+        .getBoolean(KEY_ENABLED, true)) {
+      return;
+    }
+
+    ConfigSection cfg = configs.get(formatterName);
+    String[] prefixList = cfg.getStringList(KEY_PREFIX);
+    for (String prefix : prefixList) {
+      prefixes.add(prefix, formatterName);
+    }
+    Entry e =
+        new Entry(
+            size++,
+            new FormatterProvider(formatterName, provider),
+            cfg.getInt(KEY_PRIO, 0),
+            prefixList.length > 0);
+
+    for (String mt : cfg.getStringList(KEY_MIME_TYPE)) {
+      MimeType configuredMimeType = new MimeType(mt);
+      if ("*".equals(configuredMimeType.getSubType())) {
+        put(byMediaType, configuredMimeType.getMediaType(), e);
+      } else {
+        put(byMimeType, configuredMimeType.toString(), e);
+      }
+    }
+    for (String ext : cfg.getStringList(KEY_EXT)) {
+      if ("*".equals(ext)) {
+        anyExt.add(e);
+      } else {
+        put(byExt, ext, e);
+      }
+    }
+  }
+
+  private static void put(Map<String, List<Entry>> map, String key, Entry e) {
+    List<Entry> entries = map.get(key);
+    if (entries == null) {
+      entries = new ArrayList<>(1);
+      map.put(key, entries);
+    }
+    entries.add(e);
+  }
+
+  boolean isUpToDate(
+      Config globalCfg, List<Provider<Formatter>> providers, List<ObjectId> configRevisions) {
+    if (this.globalCfg != globalCfg || this.providers.size() != providers.size()) {
+      return false;
+    }
+    for (int i = 0; i < providers.size(); i++) {
+      if (this.providers.get(i) != providers.get(i)) {
+        return false;
+      }
+    }
+    return this.configRevisions.equals(configRevisions);
+  }
+
+  ConfigSection getFormatterConfig(String formatterName) {
+    return configs.get(formatterName);
+  }
+
+  /**
+   * Resolves the formatter for a file.
+   *
+   * <p>If several formatters can handle the file the one with the highest priority is returned. If
+   * formatters have the same priority the one that was registered first wins.
+   *
+   * @param fileName the name of the file
+   * @param extension the extension of the file
+   * @param mimeType the mime type of the file
+   * @return the formatter, <code>null</code> if no formatter can handle the file
+   */
+  FormatterProvider resolve(String fileName, String extension, MimeType mimeType) {
+    Set<String> prefixMatches = prefixes.isEmpty() ? null : prefixes.match(fileName);
+    Entry best = null;
+    best = pick(best, byMimeType.get(mimeType.toString()), prefixMatches);
+    best = pick(best, byMediaType.get(mimeType.getMediaType()), prefixMatches);
+    best = pick(best, byExt.get(extension), prefixMatches);
+    best = pick(best, anyExt, prefixMatches);
+    return best != null ? best.formatter : null;
+  }
+
+  private static Entry pick(Entry best, List<Entry> candidates, Set<String> prefixMatches) {
+    if (candidates == null) {
+      return best;
+    }
+    for (Entry e : candidates) {
+      if (e.hasPrefixes && !prefixMatches.contains(e.formatter.getName())) {
+        continue;
+      }
+      if (best == null || e.prio > best.prio || (e.prio == best.prio && e.order < best.order)) {
+        best = e;
+      }
+    }
+    return best;
+  }
+
+  private static class Entry {
+    final int order;
+    final FormatterProvider formatter;
+    final int prio;
+    final boolean hasPrefixes;
+
+    Entry(int order, FormatterProvider formatter, int prio, boolean hasPrefixes) {
+      this.order = order;
+      this.formatter = formatter;
+      this.prio = prio;
+      this.hasPrefixes = hasPrefixes;
+    }
+  }
+
+  /** Trie of the configured prefixes that maps each prefix to the formatters that declared it. */
+  static class PrefixTrie {
+    private final Node root = new Node();
+    private boolean empty = true;
+
+    void add(String prefix, String formatterName) {
+      Node n = root;
+      for (int i = 0; i < prefix.length(); i++) {
+        char c = prefix.charAt(i);
+        Node child = n.children.get(c);
+        if (child == null) {
+          child = new Node();
+          n.children.put(c, child);
+        }
+        n = child;
+      }
+      n.formatterNames.add(formatterName);
+      empty = false;
+    }
+
+    boolean isEmpty() {
+      return empty;
+    }
+
+    /**
+     * Returns the names of all formatters that declared a prefix of the given file name.
+     *
+     * @param fileName the name of the file
+     * @return the names of the formatters which have a matching prefix
+     */
+    Set<String> match(String fileName) {
+      Set<String> result = new HashSet<>(root.formatterNames);
+      Node n = root;
+      for (int i = 0; i < fileName.length(); i++) {
+        n = n.children.get(fileName.charAt(i));
+        if (n == null) {
+          break;
+        }
+        result.addAll(n.formatterNames);
+      }
+      return result;
+    }
+
+    private static class Node {
+      final Map<Character, Node> children = new HashMap<>();
+      final Set<String> formatterNames = new HashSet<>(1);
+    }
+  }
+}
@@ -19,29 +19,41 @@ import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_INHERIT
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.apache.commons.lang.StringEscapeUtils.escapeHtml;
 
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
 import com.google.gerrit.extensions.annotations.PluginData;
 import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.extensions.restapi.IdString;
 import com.google.gerrit.reviewdb.client.Project;
-import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.config.CanonicalWebUrl;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.ProjectState;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
+import com.googlesource.gerrit.plugins.xdocs.XDocServlet;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.Locale;
-import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.Repository;
@@ -50,7 +62,6 @@ import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
-import org.eclipse.jgit.util.TemporaryBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,26 +69,40 @@ import org.slf4j.LoggerFactory;
 public class FormatterUtil {
   private static final Logger log = LoggerFactory.getLogger(FormatterUtil.class);
 
+  private static final int MAX_CACHED_CSS = 1024;
+
   private final String pluginName;
+  private final Provider<String> webUrl;
   private final File baseDir;
   private final GitRepositoryManager repoManager;
   private final ProjectCache projectCache;
   private final Formatters formatters;
-  private final Map<String, String> defaultCss;
+  private final DefaultCssRegistry defaultCssRegistry;
+  private final Cache<MetaConfigFileKey, Optional<String>> metaConfigFiles;
+  private final Cache<InheritedCssKey, Optional<String>> inheritedCss;
+  private final Cache<Path, GlobalCss> globalCss;
+  private final Cache<CssUrlKey, CssUrl> cssUrls;
 
   @Inject
   FormatterUtil(
       @PluginName String pluginName,
+      @CanonicalWebUrl Provider<String> webUrl,
       @PluginData File baseDir,
       GitRepositoryManager repoManager,
       ProjectCache projectCache,
-      Formatters formatters) {
+      Formatters formatters,
+      DefaultCssRegistry defaultCssRegistry) {
     this.pluginName = pluginName;
+    this.webUrl = webUrl;
     this.baseDir = baseDir;
     this.repoManager = repoManager;
     this.projectCache = projectCache;
     this.formatters = formatters;
-    this.defaultCss = new HashMap<>();
+    this.defaultCssRegistry = defaultCssRegistry;
+    this.metaConfigFiles = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_CSS).build();
+    this.inheritedCss = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_CSS).build();
+    this.globalCss = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_CSS).build();
+    this.cssUrls = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_CSS).build();
   }
 
   /**
@@ -91,8 +116,7 @@ public class FormatterUtil {
    *     ".css" file extension
    * @param theme the name of the CSS theme, may be <code>null</code>, if given it is included into
    *     the CSS file name: '<name>-<theme>.css'
-   * @return the CSS from the file; HTML characters are escaped; <code>null</code> if the file
-   *     doesn't exist
+   * @return the CSS from the file, <code>null</code> if the file doesn't exist
    */
   public String getCss(String projectName, String name, String theme) {
     return Strings.isNullOrEmpty(theme)
@@ -106,11 +130,10 @@ public class FormatterUtil {
    *
    * @param name the name of the file in the "<plugin-name>/" folder without the ".css" file
    *     extension
-   * @return the CSS from the file; HTML characters are escaped; <code>null</code> if the file
-   *     doesn't exist
+   * @return the CSS from the file, <code>null</code> if the file doesn't exist
    */
   public String getCss(String projectName, String name) {
-    return escapeHtml(getMetaConfigFile(projectName, name + ".css"));
+    return getMetaConfigFile(projectName, name + ".css");
   }
 
   /**
@@ -124,14 +147,36 @@ public class FormatterUtil {
    * @param name the name of the CSS file without theme and without the ".css" file extension
    * @param theme the name of the CSS theme, may be <code>null</code>, if given it is included into
    *     the CSS file name: '<name>-<theme>.css'
-   * @return the inherited CSS; HTML characters are escaped; <code>null</code> if there is no
-   *     inherited CSS
+   * @return the inherited CSS, <code>null</code> if there is no inherited CSS
    * @throws IOException thrown in case of an I/O Error while reading the global CSS file
    */
   public String getInheritedCss(String projectName, String formatterName, String name, String theme)
       throws IOException {
-    return getInheritedCss(
-        projectCache.get(new Project.NameKey(projectName)), formatterName, name, theme);
+    ProjectState project = projectCache.get(new Project.NameKey(projectName));
+    if (project == null) {
+      return getGlobalCss(name, theme);
+    }
+
+    // The inherited CSS only changes if the configuration of a parent project
+    // or the global CSS file changes, hence both are part of the cache key.
+    ImmutableList.Builder<ObjectId> parentRevisions = ImmutableList.builder();
+    for (ProjectState parent : project.parents()) {
+      parentRevisions.add(getConfigRevision(parent));
+    }
+    InheritedCssKey key =
+        new InheritedCssKey(
+            projectName,
+            formatterName,
+            name,
+            Strings.nullToEmpty(theme),
+            getGlobalCssStamp(Strings.isNullOrEmpty(theme) ? name : name + "-" + theme),
+            parentRevisions.build());
+    Optional<String> css = inheritedCss.getIfPresent(key);
+    if (css == null) {
+      css = Optional.ofNullable(getInheritedCss(project, formatterName, name, theme));
+      inheritedCss.put(key, css);
+    }
+    return css.orElse(null);
   }
 
   private String getInheritedCss(
@@ -167,8 +212,7 @@ public class FormatterUtil {
    * @param name the name of the CSS file without theme and without the ".css" file extension
    * @param theme the name of the CSS theme, may be <code>null</code>, if given it is included into
    *     the CSS file name: '<name>-<theme>.css'
-   * @return the CSS from the file; HTML characters are escaped; <code>null</code> if the file
-   *     doesn't exist
+   * @return the CSS from the file, <code>null</code> if the file doesn't exist
    * @throws IOException thrown in case of an I/O Error while reading the CSS file
    */
   public String getGlobalCss(String name, String theme) throws IOException {
@@ -179,97 +223,225 @@ public class FormatterUtil {
    * Returns the CSS from the file "<review-site>/data/<plugin-name>/css/<name>.css".
    *
    * @param name the name of the CSS file without the ".css" file extension
-   * @return the CSS from the file; HTML characters are escaped; <code>null</code> if the file
-   *     doesn't exist
+   * @return the CSS from the file, <code>null</code> if the file doesn't exist
    * @throws IOException thrown in case of an I/O Error while reading the CSS file
    */
   public String getGlobalCss(String name) throws IOException {
-    Path p = Paths.get(baseDir.getAbsolutePath(), "css", name + ".css");
-    if (Files.exists(p)) {
-      byte[] css = Files.readAllBytes(p);
-      return escapeHtml(new String(css, UTF_8));
+    Path p = getGlobalCssPath(name);
+    BasicFileAttributes attrs;
+    try {
+      attrs = Files.readAttributes(p, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      return null;
     }
-    return null;
+
+    GlobalCss cached = globalCss.getIfPresent(p);
+    if (cached != null && cached.isUpToDate(attrs)) {
+      return cached.css;
+    }
+    byte[] css = Files.readAllBytes(p);
+    cached = new GlobalCss(attrs, new String(css, UTF_8));
+    globalCss.put(p, cached);
+    return cached.css;
+  }
+
+  private Path getGlobalCssPath(String name) {
+    return Paths.get(baseDir.getAbsolutePath(), "css", name + ".css");
+  }
+
+  private String getGlobalCssStamp(String name) throws IOException {
+    try {
+      BasicFileAttributes attrs =
+          Files.readAttributes(getGlobalCssPath(name), BasicFileAttributes.class);
+      return attrs.lastModifiedTime().toMillis() + ":" + attrs.size();
+    } catch (NoSuchFileException e) {
+      return "";
+    }
+  }
+
+  private static ObjectId getConfigRevision(ProjectState project) {
+    ObjectId rev = project.getConfig().getRevision();
+    return rev != null ? rev.copy() : ObjectId.zeroId();
   }
 
+  /**
+   * Inserts a reference to the CSS of the formatter into the given HTML.
+   *
+   * <p>The CSS itself is not inlined, but served separately under a URL that contains the hash of
+   * the CSS, see {@link #getCssUrl(String, String)}.
+   *
+   * @param html the HTML
+   * @param formatterName the name of the formatter
+   * @param projectName the name of the project
+   * @return the HTML that references the CSS
+   * @throws IOException thrown if the CSS cannot be read
+   */
   public String applyCss(String html, String formatterName, String projectName) throws IOException {
-    ConfigSection projectCfg = formatters.getFormatterConfig(formatterName, projectName);
-    String cssName = formatterName.toLowerCase(Locale.US);
-    String cssTheme = projectCfg.getString(KEY_CSS_THEME);
-    String defaultCss = getDefaultCss(formatterName);
-    String inheritedCss = getInheritedCss(projectName, formatterName, cssName, cssTheme);
-    String projectCss = getCss(projectName, cssName, cssTheme);
-    if (projectCfg.getBoolean(KEY_INHERIT_CSS, true)) {
-      return insertCss(html, MoreObjects.firstNonNull(inheritedCss, defaultCss), projectCss);
-    } else {
-      return insertCss(
-          html,
-          MoreObjects.firstNonNull(projectCss, MoreObjects.firstNonNull(inheritedCss, defaultCss)));
+    return insertIntoDocument(html, getCssLink(formatterName, projectName));
+  }
+
+  /**
+   * Wraps the given output stream so that the CSS of the formatter is inserted into the HTML that
+   * is written to it.
+   *
+   * <p>The reference to the CSS is inserted in front of the {@code </head>} tag, or if there is no
+   * head in front of the last {@code </body>} tag, like {@link #applyCss(String, String, String)}
+   * does. The returned stream must be closed to write the CSS
+   * and the end of the document, closing it doesn't close the given stream.
+   *
+   * @param out the stream to which the UTF-8 encoded HTML is written
+   * @param formatterName the name of the formatter
+   * @param projectName the name of the project
+   * @return the stream into which the HTML should be written
+   * @throws IOException thrown if the CSS cannot be read
+   */
+  public OutputStream newCssInsertingStream(
+      OutputStream out, String formatterName, String projectName) throws IOException {
+    String link = getCssLink(formatterName, projectName);
+    return new CssInsertingOutputStream(out, Strings.nullToEmpty(link).getBytes(UTF_8));
+  }
+
+  /**
+   * Returns the CSS that is applied for a formatter.
+   *
+   * @param formatterName the name of the formatter
+   * @param projectName the name of the project
+   * @return the CSS, <code>null</code> if there is no CSS
+   * @throws IOException thrown if the CSS cannot be read
+   */
+  public String getComposedCss(String formatterName, String projectName) throws IOException {
+    String[] css = getFormatterCss(formatterName, projectName);
+    return joinCss(css[0], css[1]);
+  }
+
+  /**
+   * Returns the URL under which the CSS of a formatter is served.
+   *
+   * <p>The URL contains the hash of the CSS, so that browsers can cache the CSS forever. If the
+   * CSS changes the documents are rendered again and reference the new URL.
+   *
+   * @param formatterName the name of the formatter
+   * @param projectName the name of the project
+   * @return the absolute path of the CSS, <code>null</code> if there is no CSS
+   * @throws IOException thrown if the CSS cannot be read
+   */
+  public String getCssUrl(String formatterName, String projectName) throws IOException {
+    ProjectState project = projectCache.get(new Project.NameKey(projectName));
+    if (project == null) {
+      return computeCssUrl(formatterName, projectName);
     }
+
+    // The URL is requested for each document request, hence it is only computed again if the
+    // configuration of the project or of a parent project or the global CSS file changes.
+    ImmutableList.Builder<ObjectId> configRevisions = ImmutableList.builder();
+    for (ProjectState p : project.tree()) {
+      configRevisions.add(getConfigRevision(p));
+    }
+    CssUrlKey key = new CssUrlKey(projectName, formatterName, configRevisions.build());
+    CssUrl cached = cssUrls.getIfPresent(key);
+    if (cached != null && cached.globalCssStamp.equals(getGlobalCssStamp(cached.globalCssName))) {
+      return cached.url;
+    }
+
+    String globalCssName = getCssFileName(formatterName, projectName);
+    String globalCssStamp = getGlobalCssStamp(globalCssName);
+    String url = computeCssUrl(formatterName, projectName);
+    cssUrls.put(key, new CssUrl(url, globalCssName, globalCssStamp));
+    return url;
   }
 
-  private String getDefaultCss(String formatterName) throws IOException {
-    String css = defaultCss.get(formatterName);
+  private String computeCssUrl(String formatterName, String projectName) throws IOException {
+    String css = getComposedCss(formatterName, projectName);
     if (css == null) {
-      URL url = FormatterUtil.class.getResource(formatterName.toLowerCase(Locale.US) + ".css");
-      if (url != null) {
-        try (InputStream in = url.openStream();
-            TemporaryBuffer.Heap tmp = new TemporaryBuffer.Heap(128 * 1024)) {
-          tmp.copy(in);
-          css = new String(tmp.toByteArray(), UTF_8);
-        }
-      } else {
-        log.info(String.format("No default CSS for formatter '%s' found.", formatterName));
-        css = "";
-      }
-      defaultCss.put(formatterName, css);
+      return null;
     }
-    return css;
+    return getPluginPath()
+        + XDocServlet.PATH_PREFIX
+        + IdString.fromDecoded(projectName).encoded()
+        + "/"
+        + XDocServlet.CSS_PATH
+        + IdString.fromDecoded(formatterName).encoded()
+        + "/"
+        + getCssHash(css)
+        + ".css";
   }
 
   /**
-   * Inserts the given CSS into the given HTML.
+   * Computes the hash of a CSS that is part of the CSS URL.
    *
-   * @param html the HTML
-   * @param css the CSS, may be <code>null</code>
-   * @return the HTML that includes the CSS
+   * @param css the CSS
+   * @return the hash
    */
-  public String insertCss(String html, String css) {
-    if (html == null || css == null) {
-      return html;
+  public static String getCssHash(String css) {
+    return Hashing.md5().hashString(css, UTF_8).toString();
+  }
+
+  private String getCssLink(String formatterName, String projectName) throws IOException {
+    String url = getCssUrl(formatterName, projectName);
+    if (url == null) {
+      return null;
+    }
+    return "<link rel=\"stylesheet\" type=\"text/css\" href=\"" + escapeHtml(url) + "\">\n";
+  }
+
+  private String getPluginPath() {
+    String path = null;
+    String url = webUrl.get();
+    if (!Strings.isNullOrEmpty(url)) {
+      try {
+        path = new URL(url).getPath();
+      } catch (MalformedURLException e) {
+        log.warn(String.format("Invalid canonical web URL: %s", url));
+      }
     }
+    path = CharMatcher.is('/').trimTrailingFrom(Strings.nullToEmpty(path));
+    return path + "/plugins/" + pluginName;
+  }
 
-    return insertCss(html, css, null);
+  /** Returns the name of the CSS file of a formatter without the ".css" file extension. */
+  private String getCssFileName(String formatterName, String projectName) {
+    String cssName = formatterName.toLowerCase(Locale.US);
+    String cssTheme =
+        formatters.getFormatterConfig(formatterName, projectName).getString(KEY_CSS_THEME);
+    return Strings.isNullOrEmpty(cssTheme) ? cssName : cssName + "-" + cssTheme;
+  }
+
+  /** Returns the CSS that should be applied for a formatter, the entries may be null. */
+  private String[] getFormatterCss(String formatterName, String projectName) throws IOException {
+    ConfigSection projectCfg = formatters.getFormatterConfig(formatterName, projectName);
+    String cssName = formatterName.toLowerCase(Locale.US);
+    String cssTheme = projectCfg.getString(KEY_CSS_THEME);
+    String defaultCss = defaultCssRegistry.getFormatterCss(formatterName);
+    String inheritedCss = getInheritedCss(projectName, formatterName, cssName, cssTheme);
+    String projectCss = getCss(projectName, cssName, cssTheme);
+    if (projectCfg.getBoolean(KEY_INHERIT_CSS, true)) {
+      return new String[] {MoreObjects.firstNonNull(inheritedCss, defaultCss), projectCss};
+    }
+    return new String[] {
+      MoreObjects.firstNonNull(projectCss, MoreObjects.firstNonNull(inheritedCss, defaultCss)),
+      null
+    };
   }
 
   /**
-   * Inserts the given CSS's into the given HTML.
-   *
-   * @param html the HTML
-   * @param css1 first CSS, may be <code>null</code>
-   * @param css2 second CSS, may be <code>null</code>
-   * @return the HTML that includes the CSS
+   * Inserts the fragment in front of the {@code </head>} tag, so that the CSS is applied before
+   * the body is rendered. If there is no head the fragment is inserted in front of the last {@code
+   * </body>} tag.
    */
-  public String insertCss(String html, String css1, String css2) {
-    if (html == null || (css1 == null && css2 == null)) {
+  private static String insertIntoDocument(String html, String fragment) {
+    if (html == null || fragment == null) {
       return html;
     }
 
-    int p = html.lastIndexOf("</body>");
+    int p = html.indexOf("</head>");
+    if (p < 0) {
+      p = html.lastIndexOf("</body>");
+    }
     if (p > 0) {
-      StringBuilder b = new StringBuilder();
-      b.append(html.substring(0, p));
-      if (css1 != null) {
-        b.append("<style type=\"text/css\">\n");
-        b.append(css1);
-        b.append("</style>\n");
-      }
-      if (css2 != null) {
-        b.append("<style type=\"text/css\">\n");
-        b.append(css2);
-        b.append("</style>\n");
-      }
-      b.append(html.substring(p));
+      StringBuilder b = new StringBuilder(html.length() + fragment.length());
+      b.append(html, 0, p);
+      b.append(fragment);
+      b.append(html, p, html.length());
       return b.toString();
     } else {
       return html;
@@ -285,12 +457,34 @@ public class FormatterUtil {
    * @return the file content, <code>null</code> if the file doesn't exist
    */
   public String getMetaConfigFile(String projectName, String fileName) {
+    ProjectState project = projectCache.get(new Project.NameKey(projectName));
+    if (project == null) {
+      return null;
+    }
+    ObjectId id = project.getConfig().getRevision();
+    if (id == null) {
+      return null;
+    }
+
+    // Files in refs/meta/config can only change with the revision, which is
+    // part of the key, hence cached entries never become stale.
+    MetaConfigFileKey key = new MetaConfigFileKey(projectName, id, fileName);
+    Optional<String> content = metaConfigFiles.getIfPresent(key);
+    if (content == null) {
+      try {
+        content = Optional.ofNullable(readMetaConfigFile(projectName, id, fileName));
+      } catch (IOException e) {
+        return null;
+      }
+      metaConfigFiles.put(key, content);
+    }
+    return content.orElse(null);
+  }
+
+  private String readMetaConfigFile(String projectName, ObjectId id, String fileName)
+      throws IOException {
     try (Repository repo = repoManager.openRepository(new Project.NameKey(projectName))) {
       try (RevWalk rw = new RevWalk(repo)) {
-        ObjectId id = repo.resolve(RefNames.REFS_CONFIG);
-        if (id == null) {
-          return null;
-        }
         RevCommit commit = rw.parseCommit(id);
         RevTree tree = commit.getTree();
         try (TreeWalk tw = new TreeWalk(repo)) {
@@ -306,8 +500,133 @@ public class FormatterUtil {
           return new String(raw, UTF_8);
         }
       }
-    } catch (IOException e) {
-      return null;
+    }
+  }
+
+  private static class MetaConfigFileKey {
+    private final String project;
+    private final ObjectId revision;
+    private final String fileName;
+
+    MetaConfigFileKey(String project, ObjectId revision, String fileName) {
+      this.project = project;
+      this.revision = revision.copy();
+      this.fileName = fileName;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, revision, fileName);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof MetaConfigFileKey) {
+        MetaConfigFileKey k = (MetaConfigFileKey) other;
+        return Objects.equals(project, k.project)
+            && Objects.equals(revision, k.revision)
+            && Objects.equals(fileName, k.fileName);
+      }
+      return false;
+    }
+  }
+
+  private static class InheritedCssKey {
+    private final String project;
+    private final String formatterName;
+    private final String name;
+    private final String theme;
+    private final String globalCssStamp;
+    private final ImmutableList<ObjectId> parentRevisions;
+
+    InheritedCssKey(
+        String project,
+        String formatterName,
+        String name,
+        String theme,
+        String globalCssStamp,
+        ImmutableList<ObjectId> parentRevisions) {
+      this.project = project;
+      this.formatterName = formatterName;
+      this.name = name;
+      this.theme = theme;
+      this.globalCssStamp = globalCssStamp;
+      this.parentRevisions = parentRevisions;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, formatterName, name, theme, globalCssStamp, parentRevisions);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof InheritedCssKey) {
+        InheritedCssKey k = (InheritedCssKey) other;
+        return Objects.equals(project, k.project)
+            && Objects.equals(formatterName, k.formatterName)
+            && Objects.equals(name, k.name)
+            && Objects.equals(theme, k.theme)
+            && Objects.equals(globalCssStamp, k.globalCssStamp)
+            && Objects.equals(parentRevisions, k.parentRevisions);
+      }
+      return false;
+    }
+  }
+
+  private static class CssUrlKey {
+    private final String project;
+    private final String formatterName;
+    private final ImmutableList<ObjectId> configRevisions;
+
+    CssUrlKey(String project, String formatterName, ImmutableList<ObjectId> configRevisions) {
+      this.project = project;
+      this.formatterName = formatterName;
+      this.configRevisions = configRevisions;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, formatterName, configRevisions);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof CssUrlKey) {
+        CssUrlKey k = (CssUrlKey) other;
+        return Objects.equals(project, k.project)
+            && Objects.equals(formatterName, k.formatterName)
+            && Objects.equals(configRevisions, k.configRevisions);
+      }
+      return false;
+    }
+  }
+
+  private static class CssUrl {
+    final String url;
+    final String globalCssName;
+    final String globalCssStamp;
+
+    CssUrl(String url, String globalCssName, String globalCssStamp) {
+      this.url = url;
+      this.globalCssName = globalCssName;
+      this.globalCssStamp = globalCssStamp;
+    }
+  }
+
+  private static class GlobalCss {
+    final FileTime lastModified;
+    final long size;
+    final String css;
+
+    GlobalCss(BasicFileAttributes attrs, String css) {
+      this.lastModified = attrs.lastModifiedTime();
+      this.size = attrs.size();
+      this.css = css;
+    }
+
+    boolean isUpToDate(BasicFileAttributes attrs) {
+      return lastModified.equals(attrs.lastModifiedTime()) && size == attrs.size();
     }
   }
 }
@@ -14,14 +14,11 @@
 
 package com.googlesource.gerrit.plugins.xdocs.formatter;
 
-import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_ENABLED;
-import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_EXT;
 import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_FORMATTER;
-import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_MIME_TYPE;
-import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_PREFIX;
-import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_PRIO;
 import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.SECTION_FORMATTER;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.gerrit.common.data.PatchScript.FileMode;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.registration.DynamicMap;
@@ -37,9 +34,14 @@ import com.google.inject.Singleton;
 import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
 import com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig;
 import eu.medsea.mimeutil.MimeType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import org.apache.commons.io.FilenameUtils;
 import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,11 +51,14 @@ public class Formatters {
 
   public static final String RAW_FORMATTER = "RAW";
 
+  private static final int MAX_INDEXES = 1024;
+
   private final String pluginName;
   private final PluginConfigFactory pluginCfgFactory;
   private final FileTypeRegistry fileTypeRegistry;
   private final DynamicMap<Formatter> formatters;
   private final ProjectCache projectCache;
+  private final Cache<Project.NameKey, FormatterIndex> indexes;
 
   @Inject
   Formatters(
@@ -67,6 +72,7 @@ public class Formatters {
     this.fileTypeRegistry = fileTypeRegistry;
     this.formatters = formatters;
     this.projectCache = projectCache;
+    this.indexes = CacheBuilder.newBuilder().maximumSize(MAX_INDEXES).build();
   }
 
   public FormatterProvider get(String projectName, String fileName) {
@@ -78,59 +84,45 @@ public class Formatters {
   }
 
   public FormatterProvider get(ProjectState project, String fileName) {
-    XDocGlobalConfig globalCfg =
-        new XDocGlobalConfig(pluginCfgFactory.getGlobalPluginConfig(pluginName));
     MimeType mimeType = fileTypeRegistry.getMimeType(fileName, (byte[]) null);
     mimeType =
         new MimeType(
             FileContentUtil.resolveContentType(
                 project, fileName, FileMode.FILE, mimeType.toString()));
-    String extension = FilenameUtils.getExtension(fileName);
-    FormatterProvider formatter = null;
-    int formatterPrio = 0;
+    return getIndex(project).resolve(fileName, FilenameUtils.getExtension(fileName), mimeType);
+  }
+
+  private FormatterIndex getIndex(ProjectState project) {
+    Config globalCfg = pluginCfgFactory.getGlobalPluginConfig(pluginName);
+    List<String> names = new ArrayList<>();
+    List<Provider<Formatter>> providers = new ArrayList<>();
     for (String pluginName : formatters.plugins()) {
       for (Entry<String, Provider<Formatter>> e : formatters.byPlugin(pluginName).entrySet()) {
-        if (!globalCfg.getFormatterConfig(e.getKey()).getBoolean(KEY_ENABLED, true)) {
-          continue;
-        }
-        ConfigSection formatterCfg = getFormatterConfig(e.getKey(), project);
-        String[] prefixes = formatterCfg.getStringList(KEY_PREFIX);
-        if (prefixes.length > 0) {
-          boolean match = false;
-          for (String prefix : prefixes) {
-            if (fileName.startsWith(prefix)) {
-              match = true;
-              break;
-            }
-          }
-          if (!match) {
-            continue;
-          }
-        }
-        for (String mt : formatterCfg.getStringList(KEY_MIME_TYPE)) {
-          MimeType configuredMimeType = new MimeType(mt);
-          if (mimeType.equals(configuredMimeType)
-              || ("*".equals(configuredMimeType.getSubType())
-                  && mimeType.getMediaType().equals(configuredMimeType.getMediaType()))) {
-            int prio = formatterCfg.getInt(KEY_PRIO, 0);
-            if (formatter == null || prio > formatterPrio) {
-              formatter = new FormatterProvider(e.getKey(), e.getValue());
-              formatterPrio = prio;
-            }
-          }
-        }
-        for (String ext : formatterCfg.getStringList(KEY_EXT)) {
-          if (extension.equals(ext) || "*".equals(ext)) {
-            int prio = formatterCfg.getInt(KEY_PRIO, 0);
-            if (formatter == null || prio > formatterPrio) {
-              formatter = new FormatterProvider(e.getKey(), e.getValue());
-              formatterPrio = prio;
-            }
-          }
-        }
+        names.add(e.getKey());
+        providers.add(e.getValue());
       }
     }
-    return formatter;
+    List<ObjectId> configRevisions = new ArrayList<>();
+    for (ProjectState p : project.tree()) {
+      configRevisions.add(p.getConfig().getRevision());
+    }
+
+    Project.NameKey projectName = project.getProject().getNameKey();
+    FormatterIndex index = indexes.getIfPresent(projectName);
+    if (index != null && index.isUpToDate(globalCfg, providers, configRevisions)) {
+      return index;
+    }
+
+    Map<String, ConfigSection> configs = new HashMap<>();
+    for (String name : names) {
+      configs.put(name, loadFormatterConfig(name, project, globalCfg));
+    }
+    index = new FormatterIndex(globalCfg, providers, configRevisions, configs);
+    for (int i = 0; i < names.size(); i++) {
+      index.add(names.get(i), providers.get(i));
+    }
+    indexes.put(projectName, index);
+    return index;
   }
 
   public ConfigSection getFormatterConfig(String formatterName, String projectName) {
@@ -142,6 +134,16 @@ public class Formatters {
   }
 
   public ConfigSection getFormatterConfig(String formatterName, ProjectState project) {
+    ConfigSection cfg = getIndex(project).getFormatterConfig(formatterName);
+    if (cfg != null) {
+      return cfg;
+    }
+    return loadFormatterConfig(
+        formatterName, project, pluginCfgFactory.getGlobalPluginConfig(pluginName));
+  }
+
+  private ConfigSection loadFormatterConfig(
+      String formatterName, ProjectState project, Config globalCfg) {
     for (ProjectState p : project.tree()) {
       Config cfg = pluginCfgFactory.getProjectPluginConfig(p, pluginName);
       if (cfg.getSubsections(SECTION_FORMATTER).contains(formatterName)) {
@@ -149,8 +151,7 @@ public class Formatters {
       }
     }
 
-    return new XDocGlobalConfig(pluginCfgFactory.getGlobalPluginConfig(pluginName))
-        .getFormatterConfig(formatterName);
+    return new XDocGlobalConfig(globalCfg).getFormatterConfig(formatterName);
   }
 
   public FormatterProvider getByName(String formatterName) {
@@ -49,6 +49,12 @@ public class ImageFormatter implements StreamFormatter {
     return "<img src=\"" + escapeHtml(getUrl(projectName, path, revision)) + "\"/>";
   }
 
+  @Override
+  public boolean dependsOnRevision() {
+    // the image URL contains the revision
+    return true;
+  }
+
   private String getUrl(String projectName, String path, String revision) {
     StringBuilder url = new StringBuilder();
     url.append("/plugins/");
@@ -15,24 +15,23 @@
 package com.googlesource.gerrit.plugins.xdocs.formatter;
 
 import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_ALLOW_HTML;
-import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_CSS_THEME;
-import static com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig.KEY_INHERIT_CSS;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
 
 public class MarkdownFormatter implements StringFormatter {
   public static final String NAME = "MARKDOWN";
 
   private final FormatterUtil util;
-  private final Formatters formatters;
 
   @Inject
-  MarkdownFormatter(FormatterUtil formatterUtil, Formatters formatters) {
+  MarkdownFormatter(FormatterUtil formatterUtil) {
     this.util = formatterUtil;
-    this.formatters = formatters;
   }
 
   @Override
@@ -44,33 +43,38 @@ public class MarkdownFormatter implements StringFormatter {
       ConfigSection globalCfg,
       String raw)
       throws IOException {
-    ConfigSection projectCfg = formatters.getFormatterConfig(NAME, projectName);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    format(projectName, path, revision, abbrRev, globalCfg, raw, out);
+    return out.toString(UTF_8.name());
+  }
+
+  @Override
+  public void format(
+      String projectName,
+      String path,
+      String revision,
+      String abbrRev,
+      ConfigSection globalCfg,
+      String raw,
+      OutputStream out)
+      throws IOException {
     com.google.gerrit.server.documentation.MarkdownFormatter f =
         new com.google.gerrit.server.documentation.MarkdownFormatter();
     if (!globalCfg.getBoolean(KEY_ALLOW_HTML, false)) {
       f.suppressHtml();
     }
-    String cssTheme = projectCfg.getString(KEY_CSS_THEME);
-    String inheritedCss = util.getInheritedCss(projectName, NAME, "markdown", cssTheme);
-    String projectCss = util.getCss(projectName, "markdown", cssTheme);
-    if (projectCfg.getBoolean(KEY_INHERIT_CSS, true)) {
-      // if there is no inherited CSS and f.setCss(null) is invoked
-      // com.google.gerrit.server.documentation.MarkdownFormatter applies the
-      // default CSS
-      f.setCss(inheritedCss);
-      byte[] b = f.markdownToDocHtml(raw, UTF_8.name());
-      return util.insertCss(new String(b, UTF_8), projectCss);
-    } else {
-      if (projectCss != null) {
-        f.setCss(projectCss);
-      } else {
-        // if there is no inherited CSS and f.setCss(null) is invoked
-        // com.google.gerrit.server.documentation.MarkdownFormatter applies the
-        // default CSS
-        f.setCss(inheritedCss);
-      }
-      byte[] b = f.markdownToDocHtml(raw, UTF_8.name());
-      return new String(b, UTF_8);
+    // the CSS is linked, like for the other formatters, an empty CSS prevents
+    // com.google.gerrit.server.documentation.MarkdownFormatter from inlining its default CSS
+    f.setCss("");
+    byte[] b = f.markdownToDocHtml(raw, UTF_8.name());
+    try (OutputStream withCss = util.newCssInsertingStream(out, NAME, projectName)) {
+      withCss.write(b);
     }
   }
+
+  @Override
+  public URL getDefaultCss() {
+    return com.google.gerrit.server.documentation.MarkdownFormatter.class.getResource(
+        "pegdown.css");
+  }
 }
@@ -39,4 +39,17 @@ public interface StreamFormatter extends Formatter {
       ConfigSection cfg,
       InputStream raw)
       throws IOException;
+
+  /**
+   * Whether the html that is generated by this formatter depends on the revision from which the
+   * file is loaded.
+   *
+   * <p>If the html doesn't depend on the revision it is cached by the blob of the file and reused
+   * for all commits in which the file is unchanged.
+   *
+   * @return <code>true</code> if the revision is included in the generated html
+   */
+  public default boolean dependsOnRevision() {
+    return false;
+  }
 }
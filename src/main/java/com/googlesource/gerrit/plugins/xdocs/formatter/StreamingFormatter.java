@@ -0,0 +1,62 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs.formatter;
+
+import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Formatter that writes the generated html directly into an output stream.
+ *
+ * <p>Unlike {@link StringFormatter} and {@link StreamFormatter} the formatter doesn't need to
+ * return the html as a {@link String}. The written html is still collected into a byte array
+ * before it is cached and served.
+ */
+public interface StreamingFormatter extends Formatter {
+  /**
+   * Formats the given raw stream as html and writes it UTF-8 encoded into the given output stream.
+   *
+   * @param projectName the name of the project that contains the file to be formatted
+   * @param path the file path
+   * @param revision the revision from which the file is loaded
+   * @param abbrRev the abbreviated revision from which the file is loaded
+   * @param cfg the global configuration for this formatter
+   * @param raw the raw stream
+   * @param out the stream to which the html is written, the formatter must not close it
+   * @throws IOException thrown if the formatting fails
+   */
+  public void format(
+      String projectName,
+      String path,
+      String revision,
+      String abbrRev,
+      ConfigSection cfg,
+      InputStream raw,
+      OutputStream out)
+      throws IOException;
+
+  /**
+   * Whether the html that is generated by this formatter depends on the revision from which the
+   * file is loaded.
+   *
+   * @return <code>true</code> if the revision is included in the generated html
+   * @see StreamFormatter#dependsOnRevision()
+   */
+  public default boolean dependsOnRevision() {
+    return false;
+  }
+}
@@ -14,8 +14,11 @@
 
 package com.googlesource.gerrit.plugins.xdocs.formatter;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
 import java.io.IOException;
+import java.io.OutputStream;
 
 public interface StringFormatter extends Formatter {
 
@@ -39,4 +42,45 @@ public interface StringFormatter extends Formatter {
       ConfigSection cfg,
       String raw)
       throws IOException;
+
+  /**
+   * Formats the given raw text as html and writes it UTF-8 encoded into the given output stream.
+   *
+   * <p>Formatters should override this method if they can write the html directly into the
+   * output stream.
+   *
+   * @param projectName the name of the project that contains the file to be formatted
+   * @param path the file path
+   * @param revision the revision from which the file is loaded
+   * @param abbrRev the abbreviated revision from which the file is loaded
+   * @param cfg the global configuration for this formatter
+   * @param raw the raw text
+   * @param out the stream to which the html is written, the formatter must not close it
+   * @throws IOException thrown if the formatting fails
+   */
+  public default void format(
+      String projectName,
+      String path,
+      String revision,
+      String abbrRev,
+      ConfigSection cfg,
+      String raw,
+      OutputStream out)
+      throws IOException {
+    out.write(format(projectName, path, revision, abbrRev, cfg, raw).getBytes(UTF_8));
+  }
+
+  /**
+   * Whether the html that is generated for the given raw text depends on the revision from which
+   * the file is loaded.
+   *
+   * <p>If the html doesn't depend on the revision it is cached by the blob of the file and reused
+   * for all commits in which the file is unchanged.
+   *
+   * @param raw the raw text
+   * @return <code>true</code> if the revision is included in the generated html
+   */
+  public default boolean dependsOnRevision(String raw) {
+    return false;
+  }
 }
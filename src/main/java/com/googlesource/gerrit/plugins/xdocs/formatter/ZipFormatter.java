@@ -14,15 +14,20 @@
 
 package com.googlesource.gerrit.plugins.xdocs.formatter;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.inject.Inject;
 import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import org.apache.commons.io.FileUtils;
 
-public class ZipFormatter implements StreamFormatter {
+public class ZipFormatter implements StreamingFormatter {
   public static final String NAME = "ZIP";
 
   private final FormatterUtil util;
@@ -35,13 +40,14 @@ public class ZipFormatter implements StreamFormatter {
   }
 
   @Override
-  public String format(
+  public void format(
       String projectName,
       String path,
       String revision,
       String abbrRev,
       ConfigSection globalCfg,
-      InputStream raw)
+      InputStream raw,
+      OutputStream out)
       throws IOException {
     html.startDocument()
         .openHead()
@@ -68,6 +74,9 @@ public class ZipFormatter implements StreamFormatter {
     }
     html.closeTable().closeBody().endDocument();
 
-    return util.applyCss(html.toString(), NAME, projectName);
+    OutputStream withCss = util.newCssInsertingStream(out, NAME, projectName);
+    try (Writer w = new OutputStreamWriter(withCss, UTF_8)) {
+      w.write(html.toString());
+    }
   }
 }
@@ -0,0 +1,62 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static com.googlesource.gerrit.plugins.xdocs.BlobResource.UNSATISFIABLE;
+import static com.googlesource.gerrit.plugins.xdocs.BlobResource.parseRange;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class BlobResourceTest {
+
+  @Test
+  public void noRange() {
+    assertNull(parseRange(null, 100));
+    assertNull(parseRange("items=0-10", 100));
+    assertNull(parseRange("bytes=abc", 100));
+  }
+
+  @Test
+  public void multipleRangesServeFullContent() {
+    assertNull(parseRange("bytes=0-9,20-29", 100));
+  }
+
+  @Test
+  public void closedRange() {
+    assertArrayEquals(new long[] {0, 9}, parseRange("bytes=0-9", 100));
+    assertArrayEquals(new long[] {90, 99}, parseRange("bytes=90-200", 100));
+  }
+
+  @Test
+  public void openRange() {
+    assertArrayEquals(new long[] {40, 99}, parseRange("bytes=40-", 100));
+  }
+
+  @Test
+  public void suffixRange() {
+    assertArrayEquals(new long[] {80, 99}, parseRange("bytes=-20", 100));
+    assertArrayEquals(new long[] {0, 99}, parseRange("bytes=-500", 100));
+  }
+
+  @Test
+  public void unsatisfiableRange() {
+    assertSame(UNSATISFIABLE, parseRange("bytes=100-", 100));
+    assertSame(UNSATISFIABLE, parseRange("bytes=-0", 100));
+    assertSame(UNSATISFIABLE, parseRange("bytes=0-", 0));
+  }
+}
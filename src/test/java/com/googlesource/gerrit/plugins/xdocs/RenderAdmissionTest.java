@@ -0,0 +1,178 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyString;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.PluginConfigFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RenderAdmissionTest {
+  private static final String PLUGIN_NAME = "xdocs";
+  private static final String FORMATTER = "F";
+
+  private Config cfg;
+  private Counter1<String> rejected;
+  private ExecutorService executor;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    cfg = new Config();
+    cfg.setInt(XDocGlobalConfig.SECTION_FORMATTER, FORMATTER, "maxConcurrent", 1);
+    rejected = createMock(Counter1.class);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void renderingsWithinLimit() throws Exception {
+    replay(rejected);
+    RenderAdmission admission = newAdmission();
+    admission.acquire(FORMATTER).close();
+    admission.acquire(FORMATTER).close();
+    verify(rejected);
+  }
+
+  @Test
+  public void queueFullIsRejected() throws Exception {
+    cfg.setInt(XDocGlobalConfig.SECTION_FORMATTER, FORMATTER, "maxQueued", 0);
+    rejected.increment(FORMATTER);
+    expectLastCall().once();
+    replay(rejected);
+    RenderAdmission admission = newAdmission();
+
+    try (RenderAdmission.Permit permit = admission.acquire(FORMATTER)) {
+      admission.acquire(FORMATTER);
+      fail("expected RenderRejectedException");
+    } catch (RenderRejectedException e) {
+      // expected
+    }
+    verify(rejected);
+  }
+
+  @Test
+  public void waitingTooLongIsRejected() throws Exception {
+    cfg.setString(XDocGlobalConfig.SECTION_RENDER, null, "timeout", "10 ms");
+    rejected.increment(FORMATTER);
+    expectLastCall().once();
+    replay(rejected);
+    RenderAdmission admission = newAdmission();
+
+    try (RenderAdmission.Permit permit = admission.acquire(FORMATTER)) {
+      admission.acquire(FORMATTER);
+      fail("expected RenderRejectedException");
+    } catch (RenderRejectedException e) {
+      // expected
+    }
+    verify(rejected);
+  }
+
+  @Test
+  public void backgroundRenderingDoesNotWait() throws Exception {
+    replay(rejected);
+    RenderAdmission admission = newAdmission();
+
+    try (RenderAdmission.Permit permit = admission.acquire(FORMATTER);
+        RenderAdmission.Scope scope = admission.background()) {
+      admission.acquire(FORMATTER);
+      fail("expected RenderRejectedException");
+    } catch (RenderRejectedException e) {
+      // expected
+    }
+    // background renderings are not counted as rejections
+    verify(rejected);
+
+    // the slot is free again
+    try (RenderAdmission.Scope scope = admission.background()) {
+      admission.acquire(FORMATTER).close();
+    }
+  }
+
+  @Test
+  public void freedSlotGoesToWaitingRequest() throws Exception {
+    replay(rejected);
+    RenderAdmission admission = newAdmission();
+
+    RenderAdmission.Permit permit = admission.acquire(FORMATTER);
+    AtomicReference<Thread> waiter = new AtomicReference<>();
+    Future<RenderAdmission.Permit> waiting =
+        executor.submit(
+            () -> {
+              waiter.set(Thread.currentThread());
+              return admission.acquire(FORMATTER);
+            });
+    awaitWaiting(waiter);
+    permit.close();
+
+    try (RenderAdmission.Scope scope = admission.background()) {
+      admission.acquire(FORMATTER);
+      fail("expected RenderRejectedException");
+    } catch (RenderRejectedException e) {
+      // expected
+    }
+    RenderAdmission.Permit waiterPermit = waiting.get(10, TimeUnit.SECONDS);
+    assertNotNull(waiterPermit);
+    waiterPermit.close();
+  }
+
+  private static void awaitWaiting(AtomicReference<Thread> thread) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (System.nanoTime() < deadline) {
+      Thread t = thread.get();
+      if (t != null && t.getState() == Thread.State.TIMED_WAITING) {
+        return;
+      }
+      Thread.sleep(1);
+    }
+    fail("thread is not waiting for a render slot");
+  }
+
+  @SuppressWarnings("unchecked")
+  private RenderAdmission newAdmission() {
+    PluginConfigFactory pluginCfgFactory = createNiceMock(PluginConfigFactory.class);
+    expect(pluginCfgFactory.getGlobalPluginConfig(PLUGIN_NAME)).andReturn(cfg).anyTimes();
+    MetricMaker metrics = createNiceMock(MetricMaker.class);
+    expect(metrics.newCounter(anyString(), anyObject(Description.class), anyObject(Field.class)))
+        .andReturn(rejected);
+    replay(pluginCfgFactory, metrics);
+    return new RenderAdmission(PLUGIN_NAME, pluginCfgFactory, metrics);
+  }
+}
@@ -0,0 +1,114 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RenderBudgetTest {
+
+  @Test
+  public void outputWithinBudget() throws Exception {
+    RenderBudget budget = new RenderBudget("F", 0, 16);
+    ByteArrayOutputStream html = new ByteArrayOutputStream();
+    try (OutputStream out = budget.limit(html)) {
+      out.write(new byte[15]);
+      out.write('x');
+    }
+    budget.check();
+    assertEquals(16, html.size());
+  }
+
+  @Test
+  public void outputOverrun() throws Exception {
+    RenderBudget budget = new RenderBudget("F", 0, 16);
+    OutputStream out = budget.limit(new ByteArrayOutputStream());
+    out.write(new byte[8]);
+    RenderBudgetExceededException exceeded = null;
+    try {
+      out.write(new byte[9]);
+      fail("expected RenderBudgetExceededException");
+    } catch (RenderBudgetExceededException e) {
+      exceeded = e;
+    }
+
+    // formatters may swallow the failed write, the violation must be reported again
+    try {
+      budget.check();
+      fail("expected RenderBudgetExceededException");
+    } catch (RenderBudgetExceededException e) {
+      assertSame(exceeded, e);
+    }
+  }
+
+  @Test
+  public void resultOverrun() throws Exception {
+    RenderBudget budget = new RenderBudget("F", 0, 16);
+    budget.checkOutput(16);
+    try {
+      budget.checkOutput(17);
+      fail("expected RenderBudgetExceededException");
+    } catch (RenderBudgetExceededException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void timeOverrun() throws Exception {
+    RenderBudget budget = new RenderBudget("F", 1, 0);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (System.nanoTime() < deadline) {
+      try {
+        budget.check();
+      } catch (RenderBudgetExceededException e) {
+        return;
+      }
+    }
+    fail("expected RenderBudgetExceededException");
+  }
+
+  @Test
+  public void abandonedRenderingFailsAtNextCheck() throws Exception {
+    RenderBudget budget = new RenderBudget("F", 0, 0);
+    OutputStream out = budget.limit(new ByteArrayOutputStream());
+    out.write(new byte[1024]);
+    Thread.currentThread().interrupt();
+    try {
+      out.write(new byte[1024]);
+      fail("expected RenderBudgetExceededException");
+    } catch (RenderBudgetExceededException e) {
+      // expected
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  public void unlimitedBudget() throws Exception {
+    RenderBudget budget = new RenderBudget("F", 0, 0);
+    try (OutputStream out = budget.limit(new ByteArrayOutputStream())) {
+      for (int i = 0; i < 1024; i++) {
+        out.write(new byte[1024]);
+      }
+    }
+    budget.checkOutput(Long.MAX_VALUE);
+  }
+}
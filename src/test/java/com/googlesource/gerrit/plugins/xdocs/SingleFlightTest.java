@@ -0,0 +1,146 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.gerrit.metrics.Counter0;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+  private SingleFlight<String, String> flight;
+  private ExecutorService executor;
+  private CountDownLatch coalesced;
+
+  @Before
+  public void setUp() {
+    coalesced = new CountDownLatch(1);
+    Counter0 coalescedCounter = createNiceMock(Counter0.class);
+    coalescedCounter.increment();
+    expectLastCall()
+        .andAnswer(
+            () -> {
+              coalesced.countDown();
+              return null;
+            })
+        .anyTimes();
+    Counter0 timeoutCounter = createNiceMock(Counter0.class);
+    replay(coalescedCounter, timeoutCounter);
+    flight = new SingleFlight<>(coalescedCounter, timeoutCounter);
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void concurrentCallsAreCoalesced() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger loads = new AtomicInteger();
+    Future<String> first =
+        executor.submit(
+            () ->
+                flight.get(
+                    "key",
+                    () -> {
+                      loads.incrementAndGet();
+                      started.countDown();
+                      release.await();
+                      return "value";
+                    },
+                    10,
+                    TimeUnit.SECONDS));
+    started.await();
+
+    Future<String> second =
+        executor.submit(
+            () ->
+                flight.get(
+                    "key",
+                    () -> {
+                      loads.incrementAndGet();
+                      return "other";
+                    },
+                    10,
+                    TimeUnit.SECONDS));
+    coalesced.await();
+    release.countDown();
+
+    assertEquals("value", first.get());
+    assertEquals("value", second.get());
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void failureIsPropagated() throws Exception {
+    IOException failure = new IOException("broken");
+    try {
+      flight.get(
+          "key",
+          () -> {
+            throw failure;
+          },
+          1,
+          TimeUnit.SECONDS);
+      fail("expected ExecutionException");
+    } catch (ExecutionException e) {
+      assertSame(failure, e.getCause());
+    }
+    assertEquals("value", flight.get("key", () -> "value", 1, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = TimeoutException.class)
+  public void waiterTimesOut() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.submit(
+        () ->
+            flight.get(
+                "key",
+                () -> {
+                  started.countDown();
+                  release.await();
+                  return "value";
+                },
+                10,
+                TimeUnit.SECONDS));
+    started.await();
+    try {
+      flight.get("key", () -> "other", 10, TimeUnit.MILLISECONDS);
+    } finally {
+      release.countDown();
+    }
+  }
+}
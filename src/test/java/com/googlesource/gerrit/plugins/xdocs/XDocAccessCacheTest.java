@@ -0,0 +1,95 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.reviewdb.client.Project;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class XDocAccessCacheTest {
+  private static final Project.NameKey PROJECT = new Project.NameKey("project");
+  private static final String MASTER = "refs/heads/master";
+  private static final ObjectId OLD_TIP =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+  private static final ObjectId NEW_TIP =
+      ObjectId.fromString("9876543210987654321098765432109876543210");
+
+  private XDocAccessCache cache;
+
+  @Before
+  public void setUp() {
+    cache =
+        new XDocAccessCache(
+            CacheBuilder.newBuilder().build(),
+            CacheBuilder.newBuilder().build(),
+            CacheBuilder.newBuilder().build());
+  }
+
+  @Test
+  public void resolvedTipIsKnown() throws Exception {
+    assertEquals(OLD_TIP, cache.resolve(PROJECT, MASTER, () -> OLD_TIP));
+    assertEquals(OLD_TIP, cache.getKnownTip(PROJECT, MASTER));
+    assertEquals(OLD_TIP, cache.resolve(PROJECT, MASTER, () -> NEW_TIP));
+  }
+
+  @Test
+  public void refUpdateInvalidatesTip() throws Exception {
+    cache.resolve(PROJECT, MASTER, () -> OLD_TIP);
+    cache.onGitReferenceUpdated(event(MASTER));
+    assertNull(cache.getKnownTip(PROJECT, MASTER));
+    assertEquals(NEW_TIP, cache.resolve(PROJECT, MASTER, () -> NEW_TIP));
+  }
+
+  @Test
+  public void refUpdateInvalidatesHead() throws Exception {
+    cache.resolve(PROJECT, "HEAD", () -> OLD_TIP);
+    cache.onGitReferenceUpdated(event(MASTER));
+    assertNull(cache.getKnownTip(PROJECT, "HEAD"));
+  }
+
+  @Test
+  public void tipLoadedDuringRefUpdateIsNotCached() throws Exception {
+    ObjectId tip =
+        cache.resolve(
+            PROJECT,
+            MASTER,
+            () -> {
+              // the ref is updated after the loader read the old tip
+              cache.onGitReferenceUpdated(event(MASTER));
+              return OLD_TIP;
+            });
+    assertEquals(OLD_TIP, tip);
+    assertNull(cache.getKnownTip(PROJECT, MASTER));
+  }
+
+  private static GitReferenceUpdatedListener.Event event(String refName) {
+    GitReferenceUpdatedListener.Event event =
+        createNiceMock(GitReferenceUpdatedListener.Event.class);
+    expect(event.getProjectName()).andReturn(PROJECT.get()).anyTimes();
+    expect(event.getRefName()).andReturn(refName).anyTimes();
+    expect(event.getNewObjectId()).andReturn(NEW_TIP.name()).anyTimes();
+    replay(event);
+    return event;
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.extensions.events.GitReferenceUpdated;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import java.io.File;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XDocNoteStoreTest {
+  private static final Project.NameKey PROJECT = new Project.NameKey("project");
+  private static final ObjectId BLOB =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+  private static final byte[] HTML = "<p>Hello</p>".getBytes(UTF_8);
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private InMemoryRepository repo;
+  private ObjectId noteId;
+
+  @Before
+  public void setUp() {
+    repo = new InMemoryRepository(new DfsRepositoryDescription(PROJECT.get()));
+    noteId = XDocNoteStore.getNoteId("MARKDOWN", "README.md", BLOB, "config");
+  }
+
+  @Test
+  public void readWrittenNote() throws Exception {
+    XDocNoteStore store = newStore(tmp.newFolder());
+    store.write(PROJECT, ImmutableMap.of(noteId, HTML));
+    assertArrayEquals(HTML, store.read(repo, noteId, 1024));
+  }
+
+  @Test
+  public void noteWithoutValidHmacIsIgnored() throws Exception {
+    XDocNoteStore store = newStore(tmp.newFolder());
+    store.write(PROJECT, ImmutableMap.of(noteId, HTML));
+    byte[] forged = new byte[32 + HTML.length];
+    System.arraycopy(HTML, 0, forged, 32, HTML.length);
+    replaceNote(forged);
+    assertNull(store.read(repo, noteId, 1024));
+  }
+
+  @Test
+  public void noteOfOtherServerIsIgnored() throws Exception {
+    newStore(tmp.newFolder()).write(PROJECT, ImmutableMap.of(noteId, HTML));
+    assertNull(newStore(tmp.newFolder()).read(repo, noteId, 1024));
+  }
+
+  @Test
+  public void noteOfOtherFileIsIgnored() throws Exception {
+    XDocNoteStore store = newStore(tmp.newFolder());
+    ObjectId otherId = XDocNoteStore.getNoteId("MARKDOWN", "other.md", BLOB, "config");
+    store.write(PROJECT, ImmutableMap.of(otherId, HTML));
+    try (RevWalk rw = new RevWalk(repo)) {
+      NoteMap map = readNotes(rw);
+      replaceNote(rw.getObjectReader().open(map.get(otherId)).getCachedBytes());
+    }
+    assertNull(store.read(repo, noteId, 1024));
+  }
+
+  @Test
+  public void tooLargeNoteIsIgnored() throws Exception {
+    XDocNoteStore store = newStore(tmp.newFolder());
+    store.write(PROJECT, ImmutableMap.of(noteId, HTML));
+    assertNull(store.read(repo, noteId, HTML.length - 1));
+    assertArrayEquals(HTML, store.read(repo, noteId, HTML.length));
+  }
+
+  private XDocNoteStore newStore(File dataDir) throws Exception {
+    GitRepositoryManager repoManager = createNiceMock(GitRepositoryManager.class);
+    expect(repoManager.openRepository(PROJECT))
+        .andAnswer(
+            () -> {
+              repo.incrementOpen();
+              return repo;
+            })
+        .anyTimes();
+    replay(repoManager);
+    return new XDocNoteStore(
+        "x-docs",
+        null,
+        dataDir,
+        () -> new PersonIdent("Gerrit Code Review", "gerrit@example.com"),
+        repoManager,
+        GitReferenceUpdated.DISABLED);
+  }
+
+  private NoteMap readNotes(RevWalk rw) throws Exception {
+    return NoteMap.read(
+        rw.getObjectReader(),
+        rw.parseCommit(repo.exactRef(XDocNoteStore.REF_RENDERED).getObjectId()));
+  }
+
+  private void replaceNote(byte[] data) throws Exception {
+    try (RevWalk rw = new RevWalk(repo);
+        ObjectInserter ins = repo.newObjectInserter()) {
+      NoteMap map = readNotes(rw);
+      map.set(noteId, ins.insert(Constants.OBJ_BLOB, data));
+      PersonIdent ident = new PersonIdent("Mallory", "mallory@example.com");
+      CommitBuilder cb = new CommitBuilder();
+      cb.setTreeId(map.writeTree(ins));
+      cb.setAuthor(ident);
+      cb.setCommitter(ident);
+      cb.setMessage("Forge rendered document\n");
+      ObjectId commitId = ins.insert(cb);
+      ins.flush();
+      RefUpdate ru = repo.updateRef(XDocNoteStore.REF_RENDERED);
+      ru.setNewObjectId(commitId);
+      ru.setForceUpdate(true);
+      ru.update(rw);
+    }
+  }
+}
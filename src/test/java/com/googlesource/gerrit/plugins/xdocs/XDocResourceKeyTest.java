@@ -0,0 +1,103 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gerrit.reviewdb.client.Project;
+import java.io.InvalidObjectException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class XDocResourceKeyTest {
+
+  private static final ObjectId REV_A =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+  private static final ObjectId REV_B =
+      ObjectId.fromString("9876543210987654321098765432109876543210");
+  private static final ObjectId META_CONFIG_REV =
+      ObjectId.fromString("abcdefabcdefabcdefabcdefabcdefabcdefabcd");
+  private static final String PARENTS_HASH = "d41d8cd98f00b204e9800998ecf8427e";
+
+  @Test
+  public void roundTripDiffKey() throws Exception {
+    XDocResourceKey key =
+        new XDocResourceKey(
+            "MARKDOWN",
+            new Project.NameKey("foo/bar"),
+            "Documentation/\u00fcber.md",
+            REV_A,
+            META_CONFIG_REV,
+            PARENTS_HASH,
+            REV_B,
+            DiffMode.SIDEBYSIDE_B);
+    XDocResourceKey copy = roundTrip(key);
+    assertEquals(key, copy);
+    assertEquals(key.hashCode(), copy.hashCode());
+    assertEquals(DiffMode.SIDEBYSIDE_B, copy.getDiffMode());
+    assertEquals(REV_B, copy.getRevIdB());
+  }
+
+  @Test
+  public void roundTripKeyWithoutOptionalFields() throws Exception {
+    XDocResourceKey key =
+        new XDocResourceKey(
+            "ASCIIDOCTOR", new Project.NameKey("foo"), null, null, null, null, null, null);
+    XDocResourceKey copy = roundTrip(key);
+    assertEquals(key, copy);
+    assertNull(copy.getResource());
+    assertNull(copy.getRevId());
+    assertEquals(DiffMode.NO_DIFF, copy.getDiffMode());
+  }
+
+  @Test
+  public void namesAreInterned() throws Exception {
+    XDocResourceKey key =
+        new XDocResourceKey(
+            "MARKDOWN", new Project.NameKey("foo"), "README.md", REV_A, null, null, null, null);
+    XDocResourceKey copy = roundTrip(key);
+    assertSame(key.getFormatter(), copy.getFormatter());
+    assertSame(key.getProject().get(), copy.getProject().get());
+  }
+
+  @Test
+  public void encodedKeyIsCompact() {
+    XDocResourceKey key =
+        new XDocResourceKey(
+            "MARKDOWN",
+            new Project.NameKey("foo"),
+            "README.md",
+            REV_A,
+            META_CONFIG_REV,
+            PARENTS_HASH,
+            REV_B,
+            DiffMode.UNIFIED);
+    // 3 header bytes, 3 length-prefixed strings, 3 raw ids and the raw MD5 hash
+    assertEquals(3 + 9 + 4 + 10 + 3 * 20 + 17, key.encode().length);
+    assertTrue(key.encode().length < 3 * 40 + 32);
+  }
+
+  @Test(expected = InvalidObjectException.class)
+  public void malformedKey() throws Exception {
+    XDocResourceKey.fromString("not a key");
+  }
+
+  private static XDocResourceKey roundTrip(XDocResourceKey key) throws InvalidObjectException {
+    return XDocResourceKey.fromString(key.asString());
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.net.HttpHeaders;
+import com.google.gerrit.httpd.resources.Resource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Test;
+
+public class XDocResourceTest {
+
+  @Test
+  public void gzipIsAccepted() {
+    assertTrue(acceptsGzip("gzip"));
+    assertTrue(acceptsGzip("deflate, gzip;q=0.5"));
+    assertTrue(acceptsGzip("*"));
+  }
+
+  @Test
+  public void gzipIsNotAccepted() {
+    assertFalse(acceptsGzip());
+    assertFalse(acceptsGzip("identity"));
+    assertFalse(acceptsGzip("gzip;q=0"));
+    assertFalse(acceptsGzip("*;q=0"));
+  }
+
+  @Test
+  public void explicitGzipTakesPrecedenceOverWildcard() {
+    assertFalse(acceptsGzip("*, gzip;q=0"));
+    assertFalse(acceptsGzip("*", "gzip;q=0"));
+    assertTrue(acceptsGzip("*;q=0, gzip"));
+  }
+
+  @Test
+  public void etagMatchesBothEncodings() {
+    assertTrue(XDocResource.matchesETag("abc", "abc"));
+    assertTrue(XDocResource.matchesETag("abc" + XDocResource.GZIP_ETAG_SUFFIX, "abc"));
+    assertFalse(XDocResource.matchesETag("abd", "abc"));
+    assertFalse(XDocResource.matchesETag(null, "abc"));
+  }
+
+  @Test
+  public void cachedValuesAreDecoded() throws Exception {
+    assertSame(Resource.NOT_FOUND, XDocResource.fromBytes(XDocResource.NOT_FOUND));
+    assertSame(
+        Resources.METHOD_NOT_ALLOWED, XDocResource.fromBytes(XDocResource.METHOD_NOT_ALLOWED));
+    byte[] html = "<html><body><p>Hello</p></body></html>".getBytes(UTF_8);
+    assertTrue(
+        XDocResource.fromBytes(XDocResource.toBytes(html, "text/html", UTF_8.name(), 1))
+            instanceof XDocResource);
+  }
+
+  @Test
+  public void cachedValueIsReadableWithoutPluginClasses() throws Exception {
+    // the disk tier of the cache is read by Gerrit's class loader, which can't load plugin classes
+    byte[] value = XDocResource.toBytes(new byte[1000], "text/html", UTF_8.name(), 1);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(value);
+    }
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())) {
+          @Override
+          protected Class<?> resolveClass(ObjectStreamClass desc)
+              throws IOException, ClassNotFoundException {
+            return Class.forName(desc.getName(), false, null);
+          }
+        }) {
+      assertArrayEquals(value, (byte[]) in.readObject());
+    }
+  }
+
+  private static boolean acceptsGzip(String... acceptEncoding) {
+    HttpServletRequest req = createNiceMock(HttpServletRequest.class);
+    expect(req.getHeaders(HttpHeaders.ACCEPT_ENCODING))
+        .andReturn(Collections.enumeration(Arrays.asList(acceptEncoding)));
+    replay(req);
+    return XDocResource.acceptsGzip(req);
+  }
+}
@@ -59,7 +59,7 @@ public class AsciidoctorFormatterTest {
 
     replay(formatters);
 
-    formatter = new AsciidoctorFormatter(util, formatters);
+    formatter = new AsciidoctorFormatter(util, formatters, new AsciidoctorPool(1, 60000, 0));
   }
 
   @Test
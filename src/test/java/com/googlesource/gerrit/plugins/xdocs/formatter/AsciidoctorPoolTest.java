@@ -0,0 +1,67 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs.formatter;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import org.asciidoctor.Asciidoctor;
+import org.junit.After;
+import org.junit.Test;
+
+public class AsciidoctorPoolTest {
+
+  private AsciidoctorPool pool;
+
+  @After
+  public void tearDown() {
+    if (pool != null) {
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void instanceIsReused() throws IOException {
+    pool = new AsciidoctorPool(1, 60000, 0);
+    Asciidoctor first;
+    try (AsciidoctorPool.Lease lease = pool.borrow()) {
+      first = lease.get();
+    }
+    try (AsciidoctorPool.Lease lease = pool.borrow()) {
+      assertSame(first, lease.get());
+    }
+  }
+
+  @Test
+  public void instanceIsRecycledAfterMaxConversions() throws IOException {
+    pool = new AsciidoctorPool(1, 60000, 1);
+    Asciidoctor first;
+    try (AsciidoctorPool.Lease lease = pool.borrow()) {
+      first = lease.get();
+    }
+    try (AsciidoctorPool.Lease lease = pool.borrow()) {
+      assertNotSame(first, lease.get());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void borrowTimesOutWhenPoolIsExhausted() throws IOException {
+    pool = new AsciidoctorPool(1, 10, 0);
+    try (AsciidoctorPool.Lease lease = pool.borrow()) {
+      pool.borrow();
+    }
+  }
+}
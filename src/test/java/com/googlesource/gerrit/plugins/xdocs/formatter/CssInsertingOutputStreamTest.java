@@ -0,0 +1,84 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs.formatter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.Test;
+
+public class CssInsertingOutputStreamTest {
+
+  private static final String CSS = "<style>p{}</style>";
+
+  @Test
+  public void cssIsInsertedBeforeBodyEnd() throws IOException {
+    assertEquals(
+        "<html><body><p>x</p>" + CSS + "</body></html>",
+        insert("<html><body><p>x</p></body></html>"));
+  }
+
+  @Test
+  public void cssIsInsertedBeforeLastBodyEnd() throws IOException {
+    assertEquals(
+        "<body><pre></body></pre>" + CSS + "</body>", insert("<body><pre></body></pre></body>"));
+  }
+
+  @Test
+  public void cssIsInsertedBeforeHeadEnd() throws IOException {
+    assertEquals(
+        "<html><head><title>t</title>" + CSS + "</head><body></body></html>",
+        insert("<html><head><title>t</title></head><body></body></html>"));
+  }
+
+  @Test
+  public void contentAfterHeadIsPassedThrough() throws IOException {
+    assertEquals(
+        "<head>" + CSS + "</head><body></head></body>", insert("<head></head><body></head></body>"));
+  }
+
+  @Test
+  public void partialMatchesArePassedThrough() throws IOException {
+    assertEquals("<b></bo</body" + CSS + "</body>", insert("<b></bo</body</body>"));
+  }
+
+  @Test
+  public void documentWithoutBodyIsUnchanged() throws IOException {
+    assertEquals("<p>x</p></bod", insert("<p>x</p></bod"));
+  }
+
+  @Test
+  public void bytewiseWritesGiveSameResult() throws IOException {
+    String html = "<html><body></body><p></body></html>";
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new CssInsertingOutputStream(bytes, CSS.getBytes(UTF_8))) {
+      for (byte b : html.getBytes(UTF_8)) {
+        out.write(b);
+      }
+    }
+    assertEquals(insert(html), bytes.toString(UTF_8.name()));
+  }
+
+  private static String insert(String html) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new CssInsertingOutputStream(bytes, CSS.getBytes(UTF_8))) {
+      out.write(html.getBytes(UTF_8));
+    }
+    return bytes.toString(UTF_8.name());
+  }
+}
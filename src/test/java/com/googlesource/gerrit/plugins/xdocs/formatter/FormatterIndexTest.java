@@ -0,0 +1,131 @@
+// Copyright (C) 2014 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.xdocs.formatter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.inject.Provider;
+import com.google.inject.util.Providers;
+import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
+import com.googlesource.gerrit.plugins.xdocs.XDocGlobalConfig;
+import eu.medsea.mimeutil.MimeType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FormatterIndexTest {
+
+  private static final ObjectId REVISION =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+
+  private Config cfg;
+  private List<Provider<Formatter>> providers;
+
+  @Before
+  public void setUp() {
+    cfg = new Config();
+  }
+
+  @Test
+  public void resolveByExtension() {
+    cfg.setString("formatter", "ASCIIDOCTOR", "ext", "adoc");
+    FormatterIndex index = createIndex("ASCIIDOCTOR", "MARKDOWN");
+    assertEquals("ASCIIDOCTOR", resolve(index, "README.adoc", "text/plain"));
+    assertNull(resolve(index, "README.txt", "application/octet-stream"));
+  }
+
+  @Test
+  public void resolveByMimeType() {
+    cfg.setString("formatter", "MARKDOWN", "mimeType", "text/x-markdown");
+    cfg.setString("formatter", "IMAGE", "mimeType", "image/*");
+    FormatterIndex index = createIndex("MARKDOWN", "IMAGE");
+    assertEquals("MARKDOWN", resolve(index, "README.md", "text/x-markdown"));
+    assertEquals("IMAGE", resolve(index, "logo.png", "image/png"));
+  }
+
+  @Test
+  public void higherPrioWins() {
+    cfg.setString("formatter", "PLAIN_TEXT", "ext", "*");
+    cfg.setString("formatter", "MARKDOWN", "ext", "md");
+    cfg.setInt("formatter", "PLAIN_TEXT", "prio", 1);
+    FormatterIndex index = createIndex("MARKDOWN", "PLAIN_TEXT");
+    assertEquals("PLAIN_TEXT", resolve(index, "README.md", "text/x-markdown"));
+  }
+
+  @Test
+  public void firstRegisteredWinsOnSamePrio() {
+    cfg.setString("formatter", "PLAIN_TEXT", "ext", "md");
+    cfg.setString("formatter", "MARKDOWN", "ext", "md");
+    FormatterIndex index = createIndex("MARKDOWN", "PLAIN_TEXT");
+    assertEquals("MARKDOWN", resolve(index, "README.md", "text/x-markdown"));
+  }
+
+  @Test
+  public void prefixRestrictsFormatter() {
+    cfg.setString("formatter", "MARKDOWN", "ext", "md");
+    cfg.setString("formatter", "MARKDOWN", "prefix", "Documentation/");
+    FormatterIndex index = createIndex("MARKDOWN");
+    assertEquals("MARKDOWN", resolve(index, "Documentation/index.md", "text/x-markdown"));
+    assertNull(resolve(index, "README.md", "text/x-markdown"));
+  }
+
+  @Test
+  public void disabledFormatterIsIgnored() {
+    cfg.setString("formatter", "MARKDOWN", "ext", "md");
+    cfg.setBoolean("formatter", "MARKDOWN", "enabled", false);
+    FormatterIndex index = createIndex("MARKDOWN");
+    assertNull(resolve(index, "README.md", "text/x-markdown"));
+  }
+
+  @Test
+  public void indexIsOutdatedWhenConfigRevisionChanges() {
+    FormatterIndex index = createIndex("MARKDOWN");
+    assertTrue(index.isUpToDate(cfg, providers, Collections.singletonList(REVISION)));
+    assertFalse(
+        index.isUpToDate(cfg, providers, Collections.singletonList(ObjectId.zeroId())));
+    assertFalse(index.isUpToDate(new Config(), providers, Collections.singletonList(REVISION)));
+  }
+
+  private FormatterIndex createIndex(String... names) {
+    providers = new ArrayList<>();
+    Map<String, ConfigSection> configs = new HashMap<>();
+    for (String name : names) {
+      providers.add(Providers.<Formatter>of(new PlainTextFormatter()));
+      configs.put(name, new XDocGlobalConfig(cfg).getFormatterConfig(name));
+    }
+    FormatterIndex index =
+        new FormatterIndex(cfg, providers, Collections.singletonList(REVISION), configs);
+    for (int i = 0; i < names.length; i++) {
+      index.add(names[i], providers.get(i));
+    }
+    return index;
+  }
+
+  private static String resolve(FormatterIndex index, String fileName, String mimeType) {
+    Formatters.FormatterProvider formatter =
+        index.resolve(
+            fileName, fileName.substring(fileName.lastIndexOf('.') + 1), new MimeType(mimeType));
+    return formatter != null ? formatter.getName() : null;
+  }
+}
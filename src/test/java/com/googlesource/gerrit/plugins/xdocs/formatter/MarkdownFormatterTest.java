@@ -19,6 +19,7 @@ import static org.junit.Assert.assertEquals;
 
 import com.googlesource.gerrit.plugins.xdocs.ConfigSection;
 import java.io.IOException;
+import java.io.OutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
@@ -36,8 +37,10 @@ public class MarkdownFormatterTest {
   public void setUp() throws IOException {
     FormatterUtil util = createNiceMock(FormatterUtil.class);
 
-    // For easier result comparison, avoid the internal MarkdownFormatter to apply the default CSS.
-    expect(util.getInheritedCss(anyObject(), anyObject(), anyObject(), anyObject())).andReturn("");
+    // For easier result comparison, don't insert a link to the CSS.
+    expect(util.newCssInsertingStream(anyObject(OutputStream.class), anyString(), anyString()))
+        .andAnswer(() -> (OutputStream) getCurrentArguments()[0])
+        .anyTimes();
 
     replay(util);
 
@@ -46,15 +49,7 @@ public class MarkdownFormatterTest {
     // Do not expect any behavior from the ConfigSection itself.
     replay(cfg);
 
-    Formatters formatters = createNiceMock(Formatters.class);
-
-    // Avoid a NPE by just returning the ConfigSection mock object.
-    expect(formatters.getFormatterConfig((String) anyObject(), (String) anyObject()))
-        .andReturn(cfg);
-
-    replay(formatters);
-
-    formatter = new MarkdownFormatter(util, formatters);
+    formatter = new MarkdownFormatter(util);
   }
 
   @Test